@@ -0,0 +1,31 @@
+package ru.hse.servers.benchmarks;
+
+import ru.hse.servers.Constants;
+import ru.hse.servers.protocol.ArrayMessage;
+import ru.hse.servers.protocol.FrameCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+class BenchmarkData {
+    private static final long SEED = 42;
+
+    // the values clients send, so range dependent engines like counting sort see their real input
+    static int[] randomArray(int length) {
+        Random random = new Random(SEED);
+        int[] array = new int[length];
+        for (int i = 0; i < length; i++) {
+            array[i] = random.nextInt(2 * Constants.ARRAY_VALUES_ABS_MAX) - Constants.ARRAY_VALUES_ABS_MAX;
+        }
+        return array;
+    }
+
+    // a length-prefixed frame as it is sent over the socket
+    static byte[] frame(FrameCodec codec, int length) throws IOException {
+        ByteBuffer frame = codec.encodeFrame(new ArrayMessage(0, 0, randomArray(length), length));
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,64 @@
+package ru.hse.servers.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.hse.servers.BufferPool;
+import ru.hse.servers.protocol.FrameCodec;
+import ru.hse.servers.protocol.FrameDecoder;
+import ru.hse.servers.protocol.ProtocolVersion;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// Framing on the non-blocking and asynchronous servers: a frame arrives in chunks of readSize bytes,
+// as socket reads would deliver it, and is collected by FrameDecoder and decoded.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameDecoderBenchmark {
+    @Param({ "100", "1000", "10000" })
+    public int length;
+
+    @Param({ "V1", "V2" })
+    public ProtocolVersion version;
+
+    @Param({ "1460", "65536" })
+    public int readSize;
+
+    private final BufferPool pool = new BufferPool(10, 24, 32 * 1024 * 1024);
+    private byte[] frame;
+    private int[] reuse;
+    private FrameDecoder decoder;
+
+    @Setup
+    public void setup() throws IOException {
+        frame = BenchmarkData.frame(version.codec, length);
+        reuse = new int[length];
+        decoder = new FrameDecoder(pool);
+        ByteBuffer handshake = version.makeHandshake(Integer.MAX_VALUE);
+        decoder.getReadTarget().put(handshake);
+        decoder.nextFrame();
+    }
+
+    @TearDown
+    public void tearDown() {
+        decoder.release();
+    }
+
+    @Benchmark
+    public void decodeFrame(Blackhole blackhole) throws IOException {
+        FrameCodec codec = decoder.getCodec();
+        int offset = 0;
+        while (offset < frame.length) {
+            ByteBuffer target = decoder.getReadTarget();
+            int chunk = Math.min(Math.min(readSize, target.remaining()), frame.length - offset);
+            target.put(frame, offset, chunk);
+            offset += chunk;
+            ByteBuffer body;
+            while ((body = decoder.nextFrame()) != null) {
+                blackhole.consume(codec.decode(body, reuse));
+            }
+        }
+    }
+}
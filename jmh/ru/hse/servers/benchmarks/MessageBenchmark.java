@@ -0,0 +1,41 @@
+package ru.hse.servers.benchmarks;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.openjdk.jmh.annotations.*;
+import ru.hse.servers.protocol.message.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The generated protobuf message, as the original servers used it
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageBenchmark {
+    @Param({ "100", "1000", "10000" })
+    public int length;
+
+    private Message message;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        List<Integer> values = new ArrayList<>();
+        for (int value : BenchmarkData.randomArray(length)) {
+            values.add(value);
+        }
+        message = Message.newBuilder().setClientId(0).setTaskId(0).addAllArray(values).build();
+        bytes = message.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] toByteArray() {
+        return message.toByteArray();
+    }
+
+    @Benchmark
+    public Message parseFrom() throws InvalidProtocolBufferException {
+        return Message.parseFrom(bytes);
+    }
+}
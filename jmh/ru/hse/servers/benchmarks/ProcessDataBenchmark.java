@@ -0,0 +1,42 @@
+package ru.hse.servers.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.hse.servers.TestConfig;
+import ru.hse.servers.architectures.BlockingServer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// The server is never started, only its sorting path is measured.
+// Every operation also copies the unsorted input back, which is linear in the length.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProcessDataBenchmark {
+    @Param({ "100", "1000", "10000" })
+    public int length;
+
+    @Param({ "QUICK", "RADIX", "ADAPTIVE" })
+    public TestConfig.SortType sortType;
+
+    private BlockingServer server;
+    private int[] input;
+    private int[] array;
+
+    @Setup
+    public void setup() {
+        TestConfig config = new TestConfig(length, 1, 0, 1, length, length, 1,
+                TestConfig.ArchitectureType.BLOCKING, TestConfig.VaryingParameter.LENGTH);
+        config.sortType = sortType;
+        server = new BlockingServer(config, new CountDownLatch(1));
+        input = BenchmarkData.randomArray(length);
+        array = new int[length];
+    }
+
+    @Benchmark
+    public int[] processData() {
+        System.arraycopy(input, 0, array, 0, length);
+        server.processData(array, length);
+        return array;
+    }
+}
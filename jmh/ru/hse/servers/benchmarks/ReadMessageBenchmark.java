@@ -0,0 +1,40 @@
+package ru.hse.servers.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.hse.servers.protocol.ArrayMessage;
+import ru.hse.servers.protocol.FrameReader;
+import ru.hse.servers.protocol.ProtocolVersion;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Blocking reads of one frame with FrameReader, protobuf against the fixed width codec
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReadMessageBenchmark {
+    @Param({ "100", "1000", "10000" })
+    public int length;
+
+    private byte[] protobufFrame;
+    private byte[] fixedWidthFrame;
+    private int[] reuse;
+
+    @Setup
+    public void setup() throws IOException {
+        protobufFrame = BenchmarkData.frame(ProtocolVersion.V1.codec, length);
+        fixedWidthFrame = BenchmarkData.frame(ProtocolVersion.V2.codec, length);
+        reuse = new int[length];
+    }
+
+    @Benchmark
+    public ArrayMessage frameReaderV1() throws IOException {
+        return new FrameReader(new ByteArrayInputStream(protobufFrame)).readMessage(ProtocolVersion.V1.codec, reuse);
+    }
+
+    @Benchmark
+    public ArrayMessage frameReaderV2() throws IOException {
+        return new FrameReader(new ByteArrayInputStream(fixedWidthFrame)).readMessage(ProtocolVersion.V2.codec, reuse);
+    }
+}
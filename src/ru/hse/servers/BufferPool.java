@@ -0,0 +1,133 @@
+package ru.hse.servers;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Direct buffers in power of two size classes. Every acquired buffer should be released once.
+public class BufferPool {
+    public static final BufferPool SHARED = new BufferPool(10, 24, 32 * 1024 * 1024);
+
+    private final int minClassShift;
+    private final int maxClassShift;
+    private final int bytesPerClass;
+    private final Queue<ByteBuffer>[] classes;
+    private final AtomicInteger[] pooled;
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    public BufferPool(int minClassShift, int maxClassShift, int bytesPerClass) {
+        this.minClassShift = minClassShift;
+        this.maxClassShift = maxClassShift;
+        this.bytesPerClass = bytesPerClass;
+        int count = maxClassShift - minClassShift + 1;
+        classes = newQueues(count);
+        pooled = new AtomicInteger[count];
+        for (int i = 0; i < count; i++) {
+            classes[i] = new ConcurrentLinkedQueue<>();
+            pooled[i] = new AtomicInteger();
+        }
+    }
+
+    public ByteBuffer acquire(int size) {
+        acquired.increment();
+        int index = classIndex(size);
+        if (index < 0) {
+            misses.increment();
+            return ByteBuffer.allocateDirect(size);
+        }
+        ByteBuffer buffer = classes[index].poll();
+        if (buffer != null) {
+            pooled[index].decrementAndGet();
+            hits.increment();
+        } else {
+            misses.increment();
+            buffer = ByteBuffer.allocateDirect(1 << (index + minClassShift));
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        released.increment();
+        int capacity = buffer.capacity();
+        int index = classIndex(capacity);
+        if (!buffer.isDirect() || index < 0 || 1 << (index + minClassShift) != capacity) {
+            dropped.increment();
+            return;
+        }
+        if (pooled[index].incrementAndGet() > Math.max(2, bytesPerClass / capacity)) {
+            pooled[index].decrementAndGet();
+            dropped.increment();
+            return;
+        }
+        buffer.clear();
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        classes[index].offer(buffer);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Queue<ByteBuffer>[] newQueues(int count) {
+        return (Queue<ByteBuffer>[]) new Queue<?>[count];
+    }
+
+    private int classIndex(int size) {
+        if (size <= 1 << minClassShift) {
+            return 0;
+        }
+        int shift = Integer.SIZE - Integer.numberOfLeadingZeros(size - 1);
+        return shift > maxClassShift ? -1 : shift - minClassShift;
+    }
+
+    public long getAcquired() {
+        return acquired.sum();
+    }
+
+    public long getReleased() {
+        return released.sum();
+    }
+
+    public long getOutstanding() {
+        return getAcquired() - getReleased();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public double getHitRate() {
+        long total = getHits() + getMisses();
+        return total == 0 ? 0 : (double) getHits() / total;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{" +
+                "acquired=" + getAcquired() +
+                ", released=" + getReleased() +
+                ", outstanding=" + getOutstanding() +
+                ", hits=" + getHits() +
+                ", misses=" + getMisses() +
+                ", dropped=" + getDropped() +
+                ", hitRate=" + getHitRate() +
+                '}';
+    }
+}
@@ -1,95 +1,225 @@
 package ru.hse.servers;
 
-import ru.hse.servers.protocol.message.Message;
+import ru.hse.servers.protocol.ArrayMessage;
+import ru.hse.servers.protocol.FrameReader;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.SocketChannel;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 public class Client {
+    private static final long SPIN_NANOS = 50_000;
+    private static final long WRITER_STOP_TIMEOUT_MS = 1000;
+    // thousands of virtual thread clients can not each hold the default 64 KB read buffer
+    private static final int VIRTUAL_READ_BUFFER_SIZE = 8 * 1024;
+
     private final int id;
     private final TestConfig config;
-    private final CountDownLatch latch;
     private final CountDownLatch startLatch;
     private final Random random = new Random();
-    private final ExecutorService writeThread = Executors.newSingleThreadExecutor();
+    private final ExecutorService writeThread;
     private final List<Task> tasks = new CopyOnWriteArrayList<>();
-    private List<Long> results = new ArrayList<>();
+    private final LatencyHistogram results = new LatencyHistogram();
+    // warmup tasks come first and are not recorded
+    private final int totalQueries;
+    private volatile long lastEnd;
+    private volatile Exception writeError;
 
-    Client(int id, TestConfig config, CountDownLatch latch, CountDownLatch startLatch) {
+    Client(int id, TestConfig config, CountDownLatch startLatch) {
         this.id = id;
         this.config = config;
-        this.latch = latch;
         this.startLatch = startLatch;
+        totalQueries = config.warmupQueries + config.numberOfQueriesFromEachClient;
+        writeThread = config.clientEngine == TestConfig.ClientEngine.VIRTUAL_THREADS
+                ? Utils.newVirtualThreadExecutor()
+                : Executors.newSingleThreadExecutor();
 
-        for (int i = 0; i < config.numberOfQueriesFromEachClient; i++) {
+        for (int i = 0; i < totalQueries; i++) {
             tasks.add(new Task(i));
         }
     }
 
-    private Message generateMessage(int taskId) {
-        List<Integer> list = new ArrayList<>(config.arraysSize);
+    private ArrayMessage generateMessage(int taskId) {
+        int[] array = new int[config.arraysSize];
+        // with a limited number of distinct arrays every client draws its inputs from the same seeds
+        Random random = config.distinctArrays > 0 ? new Random(this.random.nextInt(config.distinctArrays)) : this.random;
 
         for (int i = 0; i < config.arraysSize; i++) {
-            list.add(random.nextInt(2 * Constants.ARRAY_VALUES_ABS_MAX) - Constants.ARRAY_VALUES_ABS_MAX);
+            array[i] = random.nextInt(2 * Constants.ARRAY_VALUES_ABS_MAX) - Constants.ARRAY_VALUES_ABS_MAX;
         }
 
-        return Message.newBuilder().addAllArray(list).setTaskId(taskId).setClientId(id).build();
+        return new ArrayMessage(id, taskId, array, array.length);
     }
 
     public void run() throws Exception {
         try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(Constants.HOST_IP, Constants.PORT))) {
             channel.configureBlocking(true);
+            if (config.serverJvm) {
+                // a server in another JVM can not count connections down, so every client counts its own
+                startLatch.countDown();
+            }
             startLatch.await();
-            channel.write(ByteBuffer.allocate(4).putInt(config.numberOfQueriesFromEachClient).flip());
+            channel.write(config.protocolVersion.makeHandshake(totalQueries));
 
             writeThread.submit(() -> {
-                for (int i = 0; i < config.numberOfQueriesFromEachClient; i++) {
-                    Task task = tasks.get(i);
-                    task.startTask();
+                try {
+                    writeTasks(channel);
+                } catch (RuntimeException e) {
+                    // the reader would wait for responses that never come, shutting the input down wakes it up
+                    writeError = e;
                     try {
-                        Utils.writeMessageToChannel(channel, task.message);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                    if (i + 1 != config.numberOfQueriesFromEachClient) {
-                        try {
-                            Thread.sleep(config.pauseBetweenQueries);
-                        } catch (InterruptedException e) {
-                            throw new RuntimeException(e);
-                        }
+                        channel.shutdownInput();
+                    } catch (IOException ignore) {
                     }
                 }
             });
 
-            for (int i = 0; i < config.numberOfQueriesFromEachClient; i++) {
-                Message result = Utils.readMessageFromChannel(channel);
+            FrameReader reader = config.clientEngine == TestConfig.ClientEngine.VIRTUAL_THREADS
+                    ? new FrameReader(Channels.newInputStream(channel), VIRTUAL_READ_BUFFER_SIZE)
+                    : new FrameReader(Channels.newInputStream(channel));
+            int[] spareArray = null;
+            int received = 0;
+            while (received < totalQueries) {
+                ArrayMessage result;
+                try {
+                    result = reader.readMessage(config.protocolVersion.codec, spareArray);
+                } catch (IOException e) {
+                    if (writeError != null) {
+                        throw new IOException("Client " + id + " failed to send", writeError);
+                    }
+                    throw e;
+                }
+                spareArray = result.array;
                 //System.out.println("Client " + id + " read finished");
-                Task task = tasks.get(result.getTaskId());
-                task.endTask();
-                checkResult(result.getArrayList());
+                for (ArrayMessage entry = result; entry != null; entry = entry.next) {
+                    Task task = tasks.get(entry.taskId);
+                    task.endTask();
+                    checkResult(entry.array, entry.length);
+                    received++;
+                }
             }
         }
         finally {
             writeThread.shutdownNow();
-            latch.countDown();
+            // the writer returns its last frame to the pool only after the write, which may outlive the responses
+            writeThread.awaitTermination(WRITER_STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
             System.out.println("Client " + id + " finished");
         }
     }
 
-    private void checkResult(List<Integer> result) {
-        if (result.size() != config.arraysSize) {
-            throw new RuntimeException("Got invalid array size " + result.size() + ", expected " + config.arraysSize);
+    private void writeTasks(SocketChannel channel) {
+        List<Task> batch = new ArrayList<>();
+        long batchStart = 0;
+        long origin = System.nanoTime();
+        double offset = firstArrival();
+        for (int i = 0; i < totalQueries; i++) {
+            Task task = tasks.get(i);
+            task.generate();
+            if (config.loadMode == TestConfig.LoadMode.CLOSED) {
+                task.startTask();
+            } else {
+                // latency of an open-loop task counts from its intended send time, even if the sender is late
+                long sendAt = origin + (long) offset;
+                waitUntil(sendAt);
+                task.start = sendAt;
+                offset += nextArrival();
+            }
+            if (batch.isEmpty()) {
+                batchStart = task.start;
+            }
+            batch.add(task);
+            boolean last = i + 1 == totalQueries;
+            long nextStart = config.loadMode == TestConfig.LoadMode.CLOSED
+                    ? System.nanoTime() + config.pauseBetweenQueries * 1_000_000L
+                    : origin + (long) offset;
+            if (last || isBatchClosed(batch.size(), batchStart, nextStart)) {
+                try {
+                    sendBatch(channel, batch);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                for (Task sent : batch) {
+                    sent.message = null;
+                }
+                batch.clear();
+            }
+            if (!last && config.loadMode == TestConfig.LoadMode.CLOSED) {
+                try {
+                    Thread.sleep(config.pauseBetweenQueries);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    // a batch is sent when it is full or when the next task would start after its window closes
+    private boolean isBatchClosed(int size, long batchStart, long nextStart) {
+        if (size >= config.batchSize || !config.protocolVersion.codec.supportsBatches()) {
+            return true;
+        }
+        return config.batchWindow > 0 && nextStart - batchStart > config.batchWindow * 1_000_000L;
+    }
+
+    // clients at a constant rate start at random phases, so they do not all send at once
+    private double firstArrival() {
+        if (config.loadMode == TestConfig.LoadMode.CONSTANT) {
+            return random.nextDouble() * 1e9 / config.targetRate;
+        }
+        return config.loadMode == TestConfig.LoadMode.POISSON ? nextArrival() : 0;
+    }
+
+    // nanoseconds until the next open-loop request
+    private double nextArrival() {
+        if (config.loadMode == TestConfig.LoadMode.POISSON) {
+            return -Math.log(1 - random.nextDouble()) * 1e9 / config.targetRate;
+        }
+        return 1e9 / config.targetRate;
+    }
+
+    // parks until shortly before the deadline and spins the rest, so pacing below 1 ms stays accurate
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new RuntimeException(new InterruptedException());
+            }
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            }
+        }
+    }
+
+    private void sendBatch(SocketChannel channel, List<Task> batch) throws IOException {
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).message.next = i + 1 < batch.size() ? batch.get(i + 1).message : null;
+        }
+        ByteBuffer frame = config.protocolVersion.codec.encodeFrame(batch.get(0).message, BufferPool.SHARED);
+        try {
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+        } finally {
+            BufferPool.SHARED.release(frame);
         }
-        for (int i = 0; i < result.size() - 1; i++) {
-            if (result.get(i) > result.get(i + 1))
+    }
+
+    private void checkResult(int[] result, int length) {
+        if (length != config.arraysSize) {
+            throw new RuntimeException("Got invalid array size " + length + ", expected " + config.arraysSize);
+        }
+        for (int i = 0; i < length - 1; i++) {
+            if (result[i] > result[i + 1])
                 throw new RuntimeException("Got unsorted array");;
         }
     }
@@ -98,29 +228,45 @@ public class Client {
         writeThread.shutdownNow();
     }
 
-    public List<Long> getResults() {
+    public LatencyHistogram getResults() {
         return results;
     }
 
+    public long getFirstStart() {
+        return tasks.get(config.warmupQueries).start;
+    }
+
+    public long getLastEnd() {
+        return lastEnd;
+    }
+
+    // the message of a task only lives from just before it is sent until it is written
     private class Task {
         public final int taskId;
-        public final Message message;
+        public ArrayMessage message;
         public long start;
         public long end;
 
         public Task(int taskId) {
             this.taskId = taskId;
+        }
+
+        public void generate() {
             message = generateMessage(taskId);
         }
 
         public void startTask() {
-            start = System.currentTimeMillis();
+            start = System.nanoTime();
         }
 
         public void endTask() {
-            end = System.currentTimeMillis();
-            results.add(end - start);
-            System.out.println("Client " + id + " query finished in " + (end - start));
+            end = System.nanoTime();
+            if (taskId < config.warmupQueries) {
+                return;
+            }
+            lastEnd = end;
+            results.record(end - start);
+            System.out.println("Client " + id + " query finished in " + (end - start) / 1_000_000);
         }
     }
 }
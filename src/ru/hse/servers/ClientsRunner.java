@@ -2,34 +2,49 @@ package ru.hse.servers;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
 
 public class ClientsRunner {
+    private static final long STOP_TIMEOUT_MS = 1000;
+
     private final TestConfig config;
     private final List<Client> clientList = new ArrayList<>();
-    private final ExecutorService pool = Executors.newCachedThreadPool();
+    private final ExecutorService pool;
     private final CountDownLatch latch;
     private final CountDownLatch startLatch;
+    private final List<Exception> errors = new CopyOnWriteArrayList<>();
+    private volatile boolean stopping = false;
 
     ClientsRunner(TestConfig config, CountDownLatch startLatch) {
         this.config = config;
         this.startLatch = startLatch;
+        pool = config.clientEngine == TestConfig.ClientEngine.VIRTUAL_THREADS
+                ? Utils.newVirtualThreadExecutor()
+                : Executors.newCachedThreadPool();
         latch = new CountDownLatch(1);
     }
 
     public void stop() {
+        stopping = true;
         for (Client client : clientList) {
             client.stop();
         }
         pool.shutdownNow();
+        // interrupted clients still return their pooled frames on the way out
+        try {
+            pool.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     public void run() throws InterruptedException {
         for (int i = 0; i < config.numberOfClients; i++) {
-            clientList.add(new Client(i, config, latch, startLatch));
+            clientList.add(new Client(i, config, startLatch));
         }
 
         try {
@@ -38,7 +53,12 @@ public class ClientsRunner {
                     try {
                         client.run();
                     } catch (Exception e) {
-                        throw new RuntimeException(e);
+                        // the other clients are interrupted once the first one finishes, that is not a failure
+                        if (!stopping) {
+                            errors.add(e);
+                        }
+                    } finally {
+                        latch.countDown();
                     }
                 });
             }
@@ -49,8 +69,37 @@ public class ClientsRunner {
         }
     }
 
+    // failures of clients before the run was stopped, a run with any of them is not a valid measurement
+    public List<Exception> getErrors() {
+        return errors;
+    }
+
     public double getMeanTime() {
-        List<Long> results = clientList.stream().flatMap(c -> c.getResults().stream()).collect(Collectors.toList());
-        return ((double) results.stream().reduce(0L, Long::sum)) / results.size();
+        return getLatencies().getMean() / 1e6;
+    }
+
+    // requests per second over the whole run, from the first intended send to the last response
+    public double getAchievedRate() {
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (Client client : clientList) {
+            if (client.getLastEnd() != 0) {
+                first = Math.min(first, client.getFirstStart());
+                last = Math.max(last, client.getLastEnd());
+            }
+        }
+        return last > first ? getLatencies().getCount() * 1e9 / (last - first) : 0;
+    }
+
+    public double getOfferedRate() {
+        return config.targetRate * config.numberOfClients;
+    }
+
+    public LatencyHistogram getLatencies() {
+        LatencyHistogram latencies = new LatencyHistogram();
+        for (Client client : clientList) {
+            latencies.add(client.getResults());
+        }
+        return latencies;
     }
 }
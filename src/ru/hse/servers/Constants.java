@@ -5,4 +5,10 @@ public class Constants {
     public static final int PORT = 30239;
     public static final int ARRAY_VALUES_ABS_MAX = 10000;
     public static final int WORKER_THREADS = 6;
+    public static final int IO_THREADS = 2;
+    public static final int SELECTOR_THREADS = Runtime.getRuntime().availableProcessors();
+    public static final int FLUSH_MAX_MESSAGES = 64;
+    public static final double INLINE_COST_THRESHOLD = 20000;
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    public static final double MAX_RELATIVE_CI = 0.1;
 }
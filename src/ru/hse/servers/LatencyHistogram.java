@@ -0,0 +1,149 @@
+package ru.hse.servers;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Durations in nanoseconds. Values below 16 are counted exactly, every larger power of two
+// is split into 16 buckets, so a percentile is off by at most 1/16 of its value.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucket = other.counts.get(i);
+            if (bucket != 0) {
+                counts.addAndGet(i, bucket);
+            }
+        }
+        count.add(other.count.sum());
+        sum.add(other.sum.sum());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    // not atomic with concurrent records, which may be lost or kept
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    // only non-empty buckets are written
+    // buckets are copied first, a request recorded meanwhile must not change how many are written
+    public void writeTo(DataOutput output) throws IOException {
+        long[] snapshot = new long[BUCKETS];
+        int used = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            if (snapshot[i] != 0) {
+                used++;
+            }
+        }
+        output.writeInt(used);
+        for (int i = 0; i < BUCKETS; i++) {
+            if (snapshot[i] != 0) {
+                output.writeShort(i);
+                output.writeLong(snapshot[i]);
+            }
+        }
+        output.writeLong(count.sum());
+        output.writeLong(sum.sum());
+        output.writeLong(max.get());
+    }
+
+    public static LatencyHistogram readFrom(DataInput input) throws IOException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        int used = input.readInt();
+        for (int i = 0; i < used; i++) {
+            int index = input.readShort();
+            histogram.counts.set(index, input.readLong());
+        }
+        histogram.count.add(input.readLong());
+        histogram.sum.add(input.readLong());
+        histogram.max.set(input.readLong());
+        return histogram;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long midpointOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + ((1L << shift) >> 1);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMean() {
+        long total = count.sum();
+        return total == 0 ? 0 : (double) sum.sum() / total;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getPercentile(double percentile) {
+        long total = count.sum();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(midpointOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    // mean, percentiles and max in milliseconds, keyed by column name
+    public Map<String, Object> toColumns(String prefix) {
+        Map<String, Object> columns = new LinkedHashMap<>();
+        columns.put(prefix + "Mean", getMean() / 1e6);
+        for (double percentile : PERCENTILES) {
+            String name = percentile == Math.rint(percentile) ? String.valueOf((int) percentile) : String.valueOf(percentile);
+            columns.put(prefix + "P" + name, getPercentile(percentile) / 1e6);
+        }
+        columns.put(prefix + "Max", getMax() / 1e6);
+        return columns;
+    }
+}
@@ -0,0 +1,20 @@
+package ru.hse.servers;
+
+// System.nanoTime() stamps of one request frame on its way through a server
+public class RequestTrace {
+    public final long received;
+    public final long parsed;
+    public long dequeued;
+    public long sorted;
+    // thread CPU time of the sort, -1 when the thread does not support it
+    public long sortCpu = -1;
+    public long encoded;
+    public long written;
+    // frames sorted during warmup are traced like the others but not recorded
+    public boolean warmup;
+
+    public RequestTrace(long received, long parsed) {
+        this.received = received;
+        this.parsed = parsed;
+    }
+}
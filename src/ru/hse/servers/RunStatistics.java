@@ -0,0 +1,66 @@
+package ru.hse.servers;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Mean, sample standard deviation and Student's t 95% confidence interval of repeated measurements
+public class RunStatistics {
+    // 0.975 quantiles of Student's t for 1 to 30 degrees of freedom, the normal one is used above
+    private static final double[] T_975 = {
+            12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+            2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+            2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042 };
+    private static final double Z_975 = 1.960;
+
+    private final int count;
+    private final double mean;
+    private final double stdDev;
+    private final double ciHalfWidth;
+
+    public RunStatistics(List<Double> values) {
+        count = values.size();
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        mean = count == 0 ? 0 : sum / count;
+        double squares = 0;
+        for (double value : values) {
+            squares += (value - mean) * (value - mean);
+        }
+        stdDev = count < 2 ? 0 : Math.sqrt(squares / (count - 1));
+        double quantile = count < 2 ? 0 : count - 1 <= T_975.length ? T_975[count - 2] : Z_975;
+        ciHalfWidth = count < 2 ? 0 : quantile * stdDev / Math.sqrt(count);
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getStdDev() {
+        return stdDev;
+    }
+
+    public double getCiLow() {
+        return mean - ciHalfWidth;
+    }
+
+    public double getCiHigh() {
+        return mean + ciHalfWidth;
+    }
+
+    public boolean isUnstable(double maxRelativeCi) {
+        return count > 1 && ciHalfWidth > maxRelativeCi * Math.abs(mean);
+    }
+
+    public Map<String, Object> toColumns(double maxRelativeCi) {
+        Map<String, Object> columns = new LinkedHashMap<>();
+        columns.put("Repetitions", count);
+        columns.put("StdDev", stdDev);
+        columns.put("CI95Low", getCiLow());
+        columns.put("CI95High", getCiHigh());
+        columns.put("Unstable", isUnstable(maxRelativeCi));
+        return columns;
+    }
+}
@@ -0,0 +1,18 @@
+package ru.hse.servers;
+
+import java.io.IOException;
+import java.util.Map;
+
+// What the benchmark needs from a server, whether it runs in this JVM or in a child process
+public interface ServerHandle {
+    void stop() throws IOException;
+
+    LatencyHistogram getLatencies();
+
+    Map<String, LatencyHistogram> getStageLatencies();
+
+    Map<String, Object> getStats();
+
+    // worker queue depth and requests in flight, taken together in one call
+    int[] sample();
+}
@@ -0,0 +1,83 @@
+package ru.hse.servers;
+
+import ru.hse.servers.architectures.AbstractServer;
+import ru.hse.servers.architectures.Servers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Standalone server for ServerProcess. The arguments are the SweepConfig keys of a single point
+// and control=<port>, the port of the harness to report readiness and results to.
+public class ServerMain {
+    private static final int START_TIMEOUT_MS = 10_000;
+    private static final String CONTROL_KEY = "control=";
+
+    public static void main(String[] args) throws Exception {
+        int controlPort = -1;
+        List<String> settings = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith(CONTROL_KEY)) {
+                controlPort = Integer.parseInt(arg.substring(CONTROL_KEY.length()));
+            } else {
+                settings.add(arg);
+            }
+        }
+        List<TestConfig> points = SweepConfig.fromArgs(settings.toArray(new String[0])).getPoints();
+        if (controlPort < 0 || points.size() != 1) {
+            throw new IllegalArgumentException("One server configuration and control=<port> are required");
+        }
+        TestConfig config = points.get(0);
+        System.out.println(config);
+
+        AbstractServer server = Servers.create(config, new CountDownLatch(config.numberOfClients));
+        ExecutorService serverThread = Executors.newSingleThreadExecutor();
+        serverThread.submit(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        if (!server.awaitReady(START_TIMEOUT_MS)) {
+            System.out.println("Server did not start");
+            System.exit(1);
+        }
+
+        try (Socket control = new Socket(InetAddress.getLoopbackAddress(), controlPort)) {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(control.getInputStream()));
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(control.getOutputStream()));
+            output.writeInt(ServerProcess.READY);
+            output.flush();
+            while (true) {
+                int command = input.readInt();
+                if (command == ServerProcess.SAMPLE) {
+                    int[] sample = server.sample();
+                    output.writeInt(sample[0]);
+                    output.writeInt(sample[1]);
+                    output.flush();
+                } else if (command == ServerProcess.STOP) {
+                    server.stop();
+                    ServerProcess.writeResults(server, output);
+                    output.flush();
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // the harness is gone, nobody will stop the server
+            e.printStackTrace();
+            System.exit(1);
+        }
+        // worker pools of the stopped server may still be winding down
+        System.exit(0);
+    }
+}
@@ -0,0 +1,158 @@
+package ru.hse.servers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// A server running in a child JVM started by ServerMain. The child connects back to a control port
+// of the harness when it accepts clients, and sends its latencies and statistics when stopped.
+public class ServerProcess implements ServerHandle {
+    static final int READY = 1;
+    static final int SAMPLE = 2;
+    static final int STOP = 3;
+    private static final int START_TIMEOUT_MS = 30_000;
+    private static final int EXIT_TIMEOUT_MS = 10_000;
+
+    private final Process process;
+    private final Socket control;
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    private LatencyHistogram latencies = new LatencyHistogram();
+    private final Map<String, LatencyHistogram> stageLatencies = new LinkedHashMap<>();
+    private final Map<String, Object> stats = new LinkedHashMap<>();
+
+    private ServerProcess(Process process, Socket control) throws IOException {
+        this.process = process;
+        this.control = control;
+        input = new DataInputStream(new BufferedInputStream(control.getInputStream()));
+        output = new DataOutputStream(new BufferedOutputStream(control.getOutputStream()));
+    }
+
+    public static ServerProcess launch(TestConfig config) throws IOException {
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            listener.setSoTimeout(START_TIMEOUT_MS);
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            for (String option : config.serverJvmOptions.trim().split("\\s+")) {
+                if (!option.isEmpty()) {
+                    command.add(option);
+                }
+            }
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(ServerMain.class.getName());
+            command.addAll(SweepConfig.toArgs(config));
+            command.add("control=" + listener.getLocalPort());
+            Process process = new ProcessBuilder(command)
+                    .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            Socket control = null;
+            try {
+                control = listener.accept();
+                ServerProcess server = new ServerProcess(process, control);
+                if (server.input.readInt() != READY) {
+                    throw new IOException("Unexpected message from the server process");
+                }
+                return server;
+            } catch (IOException e) {
+                if (control != null) {
+                    control.close();
+                }
+                process.destroyForcibly();
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void stop() throws IOException {
+        try {
+            output.writeInt(STOP);
+            output.flush();
+            readResults(input, this);
+        } finally {
+            control.close();
+            try {
+                if (!process.waitFor(EXIT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // -1 when the process does not answer
+    @Override
+    public synchronized int[] sample() {
+        try {
+            output.writeInt(SAMPLE);
+            output.flush();
+            return new int[] { input.readInt(), input.readInt() };
+        } catch (IOException e) {
+            return new int[] { -1, -1 };
+        }
+    }
+
+    static void writeResults(ServerHandle server, DataOutputStream output) throws IOException {
+        server.getLatencies().writeTo(output);
+        output.writeInt(server.getStageLatencies().size());
+        for (Map.Entry<String, LatencyHistogram> stage : server.getStageLatencies().entrySet()) {
+            output.writeUTF(stage.getKey());
+            stage.getValue().writeTo(output);
+        }
+        Map<String, Number> numbers = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> stat : server.getStats().entrySet()) {
+            if (stat.getValue() instanceof Number) {
+                numbers.put(stat.getKey(), (Number) stat.getValue());
+            }
+        }
+        output.writeInt(numbers.size());
+        for (Map.Entry<String, Number> stat : numbers.entrySet()) {
+            output.writeUTF(stat.getKey());
+            output.writeDouble(stat.getValue().doubleValue());
+        }
+    }
+
+    private static void readResults(DataInputStream input, ServerProcess server) throws IOException {
+        server.latencies = LatencyHistogram.readFrom(input);
+        int stages = input.readInt();
+        for (int i = 0; i < stages; i++) {
+            String name = input.readUTF();
+            server.stageLatencies.put(name, LatencyHistogram.readFrom(input));
+        }
+        int stats = input.readInt();
+        for (int i = 0; i < stats; i++) {
+            String name = input.readUTF();
+            server.stats.put(name, input.readDouble());
+        }
+    }
+
+    @Override
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    @Override
+    public Map<String, LatencyHistogram> getStageLatencies() {
+        return stageLatencies;
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        return stats;
+    }
+}
@@ -3,22 +3,31 @@ package ru.hse.servers;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
 import ru.hse.servers.architectures.AbstractServer;
-import ru.hse.servers.architectures.AsynchronousServer;
-import ru.hse.servers.architectures.BlockingServer;
-import ru.hse.servers.architectures.NonBlockingServer;
+import ru.hse.servers.architectures.Servers;
+import ru.hse.servers.protocol.ProtocolVersion;
 
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.InputMismatchException;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 public class ServerTesting implements Runnable {
     private final Scanner in = new Scanner(System.in);
@@ -26,6 +35,12 @@ public class ServerTesting implements Runnable {
     private final String[] HEADERS = { "Length", "Clients", "Pause", "Queries", "Time" };
     private final List<CSVNote> resultsClient = new ArrayList<>();
     private final List<CSVNote> resultsServer = new ArrayList<>();
+    private final List<CSVNote> queueSamples = Collections.synchronizedList(new ArrayList<>());
+    private final List<CSVNote> stageResults = new ArrayList<>();
+    private final Map<String, Object> labels = new LinkedHashMap<>();
+    private static final int QUEUE_SAMPLE_PERIOD_MS = 10;
+    private static final int SERVER_START_TIMEOUT_MS = 10_000;
+    private static final int SERVER_START_POLL_MS = 20;
 
     private static class CSVNote {
         public int arraySize;
@@ -33,6 +48,7 @@ public class ServerTesting implements Runnable {
         public int pause;
         public int queries;
         public double time;
+        public final Map<String, Object> extra = new LinkedHashMap<>();
 
         CSVNote(TestConfig config, double result) {
             arraySize = config.arraysSize;
@@ -43,9 +59,33 @@ public class ServerTesting implements Runnable {
         }
     }
 
-    public static void main(String[] args) {
+    private static class Repetition {
+        public LatencyHistogram clientLatencies;
+        public double offeredRate;
+        public double achievedRate;
+        public LatencyHistogram serverLatencies;
+        public Map<String, Object> stats;
+        public Map<String, LatencyHistogram> stages;
+    }
+
+    // without arguments the parameters are asked interactively, see SweepConfig for the arguments of a sweep
+    public static void main(String[] args) throws IOException {
         ServerTesting app = new ServerTesting();
-        app.run();
+        if (args.length > 0) {
+            app.runSweep(SweepConfig.fromArgs(args));
+        } else {
+            app.run();
+        }
+    }
+
+    // in a sweep every row is labelled with the grid values that are not columns of CSVNote
+    private CSVNote newNote(TestConfig point, double result, String side) {
+        CSVNote note = new CSVNote(point, result);
+        if (!labels.isEmpty()) {
+            note.extra.putAll(labels);
+            note.extra.put("Side", side);
+        }
+        return note;
     }
 
     private int readInteger() {
@@ -64,10 +104,27 @@ public class ServerTesting implements Runnable {
         int numberOfClients = 0;
         int pauseBetweenQueries = 0;
         int numberOfQueriesFromEachClient;
+        int parallelSortThreshold;
+        int inlineCostThreshold;
+        int batchSize = 1;
+        int batchWindow = 0;
+        int cacheMegabytes;
+        int distinctArrays = 0;
+        int maxInFlightPerConnection;
+        int maxInFlight;
+        boolean traceStages;
+        TestConfig.LoadMode loadMode;
+        TestConfig.ClientEngine clientEngine;
+        int warmupQueries;
+        int repetitions;
+        boolean serverJvm;
+        int targetRate = 0;
         int lowerBound;
         int upperBound;
         int step;
         TestConfig.ArchitectureType architectureType;
+        TestConfig.SortType sortType;
+        ProtocolVersion protocolVersion;
         TestConfig.VaryingParameter varyingParameter;
 
         while (true) {
@@ -75,6 +132,7 @@ public class ServerTesting implements Runnable {
             System.out.println("\t1. Asynchronous");
             System.out.println("\t2. Blocking");
             System.out.println("\t3. Non-blocking");
+            System.out.println("\t4. Virtual threads");
 
             int num = readInteger();
 
@@ -90,11 +148,185 @@ public class ServerTesting implements Runnable {
                 architectureType = TestConfig.ArchitectureType.NON_BLOCKING;
                 break;
             }
+            else if (num == 4) {
+                architectureType = TestConfig.ArchitectureType.VIRTUAL_THREADS;
+                break;
+            }
+            else {
+                System.out.println("Invalid number");
+            }
+        }
+
+        while (true) {
+            System.out.println("Choose sort engine by entering number:");
+            System.out.println("\t1. Bubble sort (baseline)");
+            System.out.println("\t2. Insertion sort");
+            System.out.println("\t3. Dual-pivot quicksort");
+            System.out.println("\t4. LSD radix sort");
+            System.out.println("\t5. Counting sort");
+            System.out.println("\t6. Adaptive");
+
+            int num = readInteger();
+
+            if (num >= 1 && num <= TestConfig.SortType.values().length) {
+                sortType = TestConfig.SortType.values()[num - 1];
+                break;
+            }
+            else {
+                System.out.println("Invalid number");
+            }
+        }
+
+        System.out.println("Enter minimal array length for parallel sorting (0 to disable):");
+        while (true) {
+            parallelSortThreshold = readInteger();
+            if (parallelSortThreshold >= 0)
+                break;
+            System.out.println("Non-negative integer is required");
+        }
+
+        System.out.println("Enter maximal estimated sort cost to run a request on the I/O thread (0 to always use workers):");
+        while (true) {
+            inlineCostThreshold = readInteger();
+            if (inlineCostThreshold >= 0)
+                break;
+            System.out.println("Non-negative integer is required");
+        }
+
+        while (true) {
+            System.out.println("Choose clients protocol by entering number:");
+            System.out.println("\t1. Version 1 (protobuf)");
+            System.out.println("\t2. Version 2 (fixed-width int32)");
+
+            int num = readInteger();
+
+            if (num == 1) {
+                protocolVersion = ProtocolVersion.V1;
+                break;
+            }
+            else if (num == 2) {
+                protocolVersion = ProtocolVersion.V2;
+                break;
+            }
+            else {
+                System.out.println("Invalid number");
+            }
+        }
+
+        if (protocolVersion.codec.supportsBatches()) {
+            System.out.println("Enter maximal number of tasks in one frame (1 to disable batching):");
+            while (true) {
+                batchSize = readInteger();
+                if (batchSize > 0)
+                    break;
+                System.out.println("Positive integer is required");
+            }
+            if (batchSize > 1) {
+                System.out.println("Enter batch time window in ms (0 for no limit):");
+                while (true) {
+                    batchWindow = readInteger();
+                    if (batchWindow >= 0)
+                        break;
+                    System.out.println("Non-negative integer is required");
+                }
+            }
+        }
+
+        System.out.println("Enter result cache size in MB (0 to disable):");
+        while (true) {
+            cacheMegabytes = readInteger();
+            if (cacheMegabytes >= 0)
+                break;
+            System.out.println("Non-negative integer is required");
+        }
+        if (cacheMegabytes > 0) {
+            System.out.println("Enter number of distinct arrays clients send (0 for all random):");
+            while (true) {
+                distinctArrays = readInteger();
+                if (distinctArrays >= 0)
+                    break;
+                System.out.println("Non-negative integer is required");
+            }
+        }
+
+        System.out.println("Enter limit of frames in flight per connection (0 for no limit):");
+        while (true) {
+            maxInFlightPerConnection = readInteger();
+            if (maxInFlightPerConnection >= 0)
+                break;
+            System.out.println("Non-negative integer is required");
+        }
+
+        System.out.println("Enter limit of frames in flight for the whole server (0 for no limit):");
+        while (true) {
+            maxInFlight = readInteger();
+            if (maxInFlight >= 0)
+                break;
+            System.out.println("Non-negative integer is required");
+        }
+
+        while (true) {
+            System.out.println("Trace server stages of every request (1 - yes, 0 - no):");
+            int num = readInteger();
+            if (num == 0 || num == 1) {
+                traceStages = num == 1;
+                break;
+            }
+            System.out.println("Invalid number");
+        }
+
+        while (true) {
+            System.out.println("Choose load model by entering number:");
+            System.out.println("\t1. Closed loop (pause after every query)");
+            System.out.println("\t2. Open loop, constant rate");
+            System.out.println("\t3. Open loop, Poisson arrivals");
+
+            int num = readInteger();
+
+            if (num >= 1 && num <= TestConfig.LoadMode.values().length) {
+                loadMode = TestConfig.LoadMode.values()[num - 1];
+                break;
+            }
+            else {
+                System.out.println("Invalid number");
+            }
+        }
+        if (loadMode != TestConfig.LoadMode.CLOSED) {
+            System.out.println("Enter request rate of each client (requests per second):");
+            while (true) {
+                targetRate = readInteger();
+                if (targetRate > 0)
+                    break;
+                System.out.println("Positive integer is required");
+            }
+        }
+
+        while (true) {
+            System.out.println("Choose how clients are run by entering number:");
+            System.out.println("\t1. Two platform threads per client");
+            System.out.println("\t2. Virtual threads (for thousands of clients)");
+
+            int num = readInteger();
+
+            if (num >= 1 && num <= TestConfig.ClientEngine.values().length) {
+                clientEngine = TestConfig.ClientEngine.values()[num - 1];
+                break;
+            }
             else {
                 System.out.println("Invalid number");
             }
         }
 
+        while (true) {
+            System.out.println("Run the server in a separate JVM (1 - yes, 0 - no):");
+            int num = readInteger();
+            if (num == 0 || num == 1) {
+                serverJvm = num == 1;
+                break;
+            }
+            System.out.println("Invalid number");
+        }
+
         System.out.println("Enter number of queries from each client (positive integer):");
         while (true) {
             numberOfQueriesFromEachClient = readInteger();
@@ -103,6 +335,22 @@ public class ServerTesting implements Runnable {
             System.out.println("Positive integer is required");
         }
 
+        System.out.println("Enter number of warmup queries from each client, their results are thrown away:");
+        while (true) {
+            warmupQueries = readInteger();
+            if (warmupQueries >= 0)
+                break;
+            System.out.println("Non-negative integer is required");
+        }
+
+        System.out.println("Enter number of repetitions of every point (positive integer):");
+        while (true) {
+            repetitions = readInteger();
+            if (repetitions > 0)
+                break;
+            System.out.println("Positive integer is required");
+        }
+
         while (true) {
             System.out.println("Choose changing parameter by entering number:");
             System.out.println("\t1. Array size");
@@ -119,6 +367,9 @@ public class ServerTesting implements Runnable {
                 varyingParameter = TestConfig.VaryingParameter.CLIENTS;
                 break;
             }
+            else if (num == 3 && loadMode != TestConfig.LoadMode.CLOSED) {
+                System.out.println("Queries interval is not used by open-loop load");
+            }
             else if (num == 3) {
                 varyingParameter = TestConfig.VaryingParameter.PAUSE;
                 break;
@@ -183,7 +434,7 @@ public class ServerTesting implements Runnable {
             }
         }
 
-        if (varyingParameter != TestConfig.VaryingParameter.PAUSE) {
+        if (varyingParameter != TestConfig.VaryingParameter.PAUSE && loadMode == TestConfig.LoadMode.CLOSED) {
             while (true) {
                 System.out.println("Enter length of pause between queries (ms):");
                 pauseBetweenQueries = readInteger();
@@ -194,13 +445,34 @@ public class ServerTesting implements Runnable {
             }
         }
 
-        return new TestConfig(arraysSize,
+        TestConfig config = new TestConfig(arraysSize,
                 numberOfClients,
                 pauseBetweenQueries,
                 numberOfQueriesFromEachClient,
                 lowerBound, upperBound,
                 step, architectureType,
                 varyingParameter);
+        config.sortType = sortType;
+        config.parallelSortThreshold = parallelSortThreshold;
+        config.protocolVersion = protocolVersion;
+        config.batchSize = batchSize;
+        config.batchWindow = batchWindow;
+        config.cacheBytes = cacheMegabytes * 1024L * 1024L;
+        config.distinctArrays = distinctArrays;
+        config.maxInFlightPerConnection = maxInFlightPerConnection;
+        config.maxInFlight = maxInFlight;
+        config.traceStages = traceStages;
+        config.loadMode = loadMode;
+        config.targetRate = targetRate;
+        config.clientEngine = clientEngine;
+        config.warmupQueries = warmupQueries;
+        config.repetitions = repetitions;
+        config.serverJvm = serverJvm;
+        if (inlineCostThreshold > 0) {
+            config.dispatchMode = TestConfig.DispatchMode.HYBRID;
+            config.inlineCostThreshold = inlineCostThreshold;
+        }
+        return config;
     }
 
     private void saveResultsToCSV(String fileName, List<CSVNote> results) {
@@ -217,15 +489,41 @@ public class ServerTesting implements Runnable {
             System.out.println("Failed to create output file");
             return;
         }
-        try (CSVPrinter printer = new CSVPrinter(out, CSVFormat.DEFAULT.withHeader(HEADERS))) {
+        Set<String> extraHeaders = new LinkedHashSet<>();
+        for (CSVNote note : results) {
+            extraHeaders.addAll(note.extra.keySet());
+        }
+        List<String> headers = new ArrayList<>(Arrays.asList(HEADERS));
+        headers.addAll(extraHeaders);
+        try (CSVPrinter printer = new CSVPrinter(out, CSVFormat.DEFAULT.withHeader(headers.toArray(new String[0])))) {
             for (CSVNote note : results) {
-                printer.printRecord(note.arraySize, note.clientsNumber, note.pause, note.queries, note.time);
+                List<Object> record = new ArrayList<>(Arrays.asList(note.arraySize, note.clientsNumber, note.pause, note.queries, note.time));
+                for (String header : extraHeaders) {
+                    record.add(note.extra.getOrDefault(header, ""));
+                }
+                printer.printRecord(record);
             }
         } catch (IOException e) {
             System.out.println("Failed to write to output file");;
         }
     }
 
+    // worker queue depth and requests in flight over the run, the Time column is ms since the clients started
+    private Future<?> startQueueSampling(ScheduledExecutorService sampler, ServerHandle server, int repetition) {
+        TestConfig point = config;
+        long start = System.nanoTime();
+        return sampler.scheduleAtFixedRate(() -> {
+            CSVNote sample = newNote(point, (System.nanoTime() - start) / 1_000_000.0, "Server");
+            if (point.repetitions > 1) {
+                sample.extra.put("Repetition", repetition);
+            }
+            int[] values = server.sample();
+            sample.extra.put("QueueDepth", values[0]);
+            sample.extra.put("InFlight", values[1]);
+            queueSamples.add(sample);
+        }, 0, QUEUE_SAMPLE_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
     @Override
     public void run() {
         config = collectConfig();
@@ -233,47 +531,211 @@ public class ServerTesting implements Runnable {
                 //TestConfig.ArchitectureType.ASYNC, TestConfig.VaryingParameter.PAUSE);
         config.initStepping();
         ExecutorService serverThread = Executors.newSingleThreadExecutor();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
         do {
-            System.out.println(config);
-            CountDownLatch startLatch = new CountDownLatch(config.numberOfClients);
-            ClientsRunner clientsRunner = new ClientsRunner(config, startLatch);
-            AbstractServer server = null;
-            if (config.architectureType == TestConfig.ArchitectureType.BLOCKING) {
-                server = new BlockingServer(config, startLatch);
+            runPoint(serverThread, sampler);
+        } while (config.step());
+        saveResultsToCSV("CLIENT_" + config.toCSVFileName(), resultsClient);
+        saveResultsToCSV("SERVER_" + config.toCSVFileName(), resultsServer);
+        if (config.traceStages) {
+            saveResultsToCSV("STAGES_" + config.toCSVFileName(), stageResults);
+        }
+        synchronized (queueSamples) {
+            saveResultsToCSV("QUEUE_" + config.toCSVFileName(), queueSamples);
+        }
+        serverThread.shutdownNow();
+        sampler.shutdownNow();
+    }
+
+    // Runs every point of the grid unattended. Client and server rows of all points go to one file,
+    // which is rewritten after every point so an interrupted sweep keeps what it measured.
+    public void runSweep(SweepConfig sweep) {
+        List<TestConfig> points = sweep.getPoints();
+        List<CSVNote> results = new ArrayList<>();
+        ExecutorService serverThread = Executors.newSingleThreadExecutor();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        for (int i = 0; i < points.size(); i++) {
+            config = points.get(i);
+            System.out.println("Sweep point " + (i + 1) + " of " + points.size());
+            labels.put("Architecture", config.architectureType);
+            labels.put("WorkerThreads", config.workerThreads);
+            int clientRows = resultsClient.size();
+            int serverRows = resultsServer.size();
+            runPoint(serverThread, sampler);
+            results.addAll(resultsClient.subList(clientRows, resultsClient.size()));
+            results.addAll(resultsServer.subList(serverRows, resultsServer.size()));
+            saveResultsToCSV(sweep.getOutputName(), results);
+            if (config.traceStages) {
+                saveResultsToCSV("STAGES_" + sweep.getOutputName(), stageResults);
             }
-            else if (config.architectureType == TestConfig.ArchitectureType.NON_BLOCKING) {
-                server = new NonBlockingServer(config, startLatch);
+            synchronized (queueSamples) {
+                saveResultsToCSV("QUEUE_" + sweep.getOutputName(), queueSamples);
             }
-            else {
-                server = new AsynchronousServer(config, startLatch);
+        }
+        serverThread.shutdownNow();
+        sampler.shutdownNow();
+    }
+
+    // Every repetition runs on a new server. The rows of a point summarize all of its repetitions:
+    // Time is the mean of the repetition means, the latency columns come from their merged histograms.
+    private void runPoint(ExecutorService serverThread, ScheduledExecutorService sampler) {
+        System.out.println(config);
+        List<Repetition> runs = new ArrayList<>();
+        for (int i = 0; i < config.repetitions; i++) {
+            Repetition run = runRepetition(i, serverThread, sampler);
+            if (run != null) {
+                runs.add(run);
             }
-            Future<?> serverFuture = null;
-            try {
-                //server.start();
-                AbstractServer finalServer = server;
+        }
+        int dropped = config.repetitions - runs.size();
+        if (runs.isEmpty()) {
+            System.out.println("Warning: every repetition of the point failed, it has no results");
+            return;
+        }
+        if (dropped > 0) {
+            System.out.println("Warning: " + dropped + " of " + config.repetitions
+                    + " repetitions failed, the point summarizes " + runs.size());
+        }
+
+        CSVNote clientNote = summarize(runs, dropped, run -> run.clientLatencies, "Client");
+        if (config.loadMode != TestConfig.LoadMode.CLOSED) {
+            clientNote.extra.put("OfferedRate", runs.get(0).offeredRate);
+        }
+        double achievedRate = 0;
+        for (Repetition run : runs) {
+            achievedRate += run.achievedRate / runs.size();
+        }
+        clientNote.extra.put("AchievedRate", achievedRate);
+        resultsClient.add(clientNote);
+
+        // server counters are averaged over the repetitions into extra columns of the server row
+        CSVNote serverNote = summarize(runs, dropped, run -> run.serverLatencies, "Server");
+        for (String column : runs.get(0).stats.keySet()) {
+            if (runs.get(0).stats.get(column) instanceof Number) {
+                double value = 0;
+                for (Repetition run : runs) {
+                    value += ((Number) run.stats.get(column)).doubleValue() / runs.size();
+                }
+                serverNote.extra.put(column, value);
+            }
+        }
+        resultsServer.add(serverNote);
+
+        if (config.traceStages) {
+            for (String stage : runs.get(0).stages.keySet()) {
+                LatencyHistogram merged = new LatencyHistogram();
+                for (Repetition run : runs) {
+                    merged.add(run.stages.get(stage));
+                }
+                CSVNote stageNote = newNote(config, merged.getMean() / 1e6, "Server");
+                stageNote.extra.put("Stage", stage);
+                stageNote.extra.putAll(merged.toColumns(""));
+                stageResults.add(stageNote);
+            }
+        }
+    }
+
+    private CSVNote summarize(List<Repetition> runs, int dropped, Function<Repetition, LatencyHistogram> side, String sideName) {
+        LatencyHistogram merged = new LatencyHistogram();
+        List<Double> means = new ArrayList<>();
+        for (Repetition run : runs) {
+            merged.add(side.apply(run));
+            means.add(side.apply(run).getMean() / 1e6);
+        }
+        RunStatistics statistics = new RunStatistics(means);
+        CSVNote note = newNote(config, statistics.getMean(), sideName);
+        note.extra.putAll(merged.toColumns(""));
+        if (config.repetitions > 1) {
+            note.extra.putAll(statistics.toColumns(config.maxRelativeCi));
+            note.extra.put("DroppedRepetitions", dropped);
+            if (statistics.isUnstable(config.maxRelativeCi)) {
+                System.out.println(sideName + " results of the point are unstable: " + means);
+            }
+        }
+        return note;
+    }
+
+    // a failed repetition is logged and left out, its point reports how many were dropped
+    private Repetition runRepetition(int repetition, ExecutorService serverThread, ScheduledExecutorService sampler) {
+        CountDownLatch startLatch = new CountDownLatch(config.numberOfClients);
+        ClientsRunner clientsRunner = new ClientsRunner(config, startLatch);
+        ServerHandle server = null;
+        Future<?> serverFuture = null;
+        Future<?> sampling = null;
+        Exception failure = null;
+        try {
+            if (config.serverJvm) {
+                server = ServerProcess.launch(config);
+            } else {
+                AbstractServer localServer = Servers.create(config, startLatch);
+                server = localServer;
                 serverFuture = serverThread.submit(() -> {
-                    try {
-                        finalServer.start();
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
+                    localServer.start();
+                    return null;
                 });
-                Thread.sleep(100);
-                clientsRunner.run();
-            } catch (Exception ignored) {
-                //ignored.printStackTrace();
-            } finally {
+                awaitStart(localServer, serverFuture);
+            }
+            sampling = startQueueSampling(sampler, server, repetition);
+            clientsRunner.run();
+            for (Exception error : clientsRunner.getErrors()) {
+                if (failure == null) {
+                    failure = new IOException(clientsRunner.getErrors().size() + " clients failed", error);
+                } else {
+                    failure.addSuppressed(error);
+                }
+            }
+        } catch (Exception e) {
+            failure = e;
+        } finally {
+            if (sampling != null) {
+                sampling.cancel(false);
+            }
+            if (server != null) {
                 try {
                     server.stop();
-                    serverFuture.cancel(true);
-                    resultsClient.add(new CSVNote(config, clientsRunner.getMeanTime()));
-                    resultsServer.add(new CSVNote(config, server.getMeanTime()));
-                } catch (Exception ignore) {
+                } catch (Exception e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
                 }
             }
-        } while (config.step());
-        saveResultsToCSV("CLIENT_" + config.toCSVFileName(), resultsClient);
-        saveResultsToCSV("SERVER_" + config.toCSVFileName(), resultsServer);
-        serverThread.shutdownNow();
+            if (serverFuture != null) {
+                serverFuture.cancel(true);
+            }
+        }
+        if (failure != null) {
+            System.out.println("Repetition " + (repetition + 1) + " of " + config.repetitions + " failed and is left out");
+            failure.printStackTrace(System.out);
+            return null;
+        }
+
+        Repetition run = new Repetition();
+        run.clientLatencies = clientsRunner.getLatencies();
+        run.offeredRate = clientsRunner.getOfferedRate();
+        run.achievedRate = clientsRunner.getAchievedRate();
+        run.serverLatencies = server.getLatencies();
+        run.stats = server.getStats();
+        run.stages = server.getStageLatencies();
+        return run;
+    }
+
+    // returns as soon as the server is bound, or fails with the reason it did not start
+    private void awaitStart(AbstractServer server, Future<?> serverFuture) throws Exception {
+        long deadline = System.nanoTime() + SERVER_START_TIMEOUT_MS * 1_000_000L;
+        while (!server.awaitReady(SERVER_START_POLL_MS)) {
+            if (serverFuture.isDone()) {
+                try {
+                    serverFuture.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("Server did not start", e.getCause());
+                }
+                throw new IOException("Server stopped before it was ready");
+            }
+            if (System.nanoTime() > deadline) {
+                throw new IOException("Server did not start in " + SERVER_START_TIMEOUT_MS + " ms");
+            }
+        }
     }
 }
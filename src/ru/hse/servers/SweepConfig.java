@@ -0,0 +1,217 @@
+package ru.hse.servers;
+
+import ru.hse.servers.protocol.ProtocolVersion;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+// A grid of benchmark points for an unattended run. Arguments are a properties file and key=value pairs,
+// the pairs override the file. Grid keys take a comma separated list or a range lower..upper:step:
+//   architecture, length, clients, pause, queries, workerThreads
+// length, clients and queries are required, and so is pause unless loadMode is open loop.
+// Every other key takes one value:
+//   sort, protocol, parallelThreshold, inlineCostThreshold, batchSize, batchWindow, cacheMB, distinctArrays,
+//   maxInFlightPerConnection, maxInFlight, traceStages, loadMode, rate, clientEngine, ioThreads,
+//   selectorThreads, flushPolicy, flushMaxMessages, warmup, repetitions, maxRelativeCi, serverJvm,
+//   serverJvmOptions, output
+public class SweepConfig {
+    private static final String DEFAULT_OUTPUT = "SWEEP.csv";
+
+    private final Properties properties = new Properties();
+
+    public static SweepConfig fromArgs(String[] args) throws IOException {
+        SweepConfig sweep = new SweepConfig();
+        List<String> overrides = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.contains("=")) {
+                overrides.add(arg);
+            } else {
+                try (Reader reader = new FileReader(arg)) {
+                    sweep.properties.load(reader);
+                }
+            }
+        }
+        for (String override : overrides) {
+            int split = override.indexOf('=');
+            sweep.properties.setProperty(override.substring(0, split).trim(), override.substring(split + 1).trim());
+        }
+        return sweep;
+    }
+
+    // the arguments of a single point, as ServerMain receives them; the server itself always runs in that JVM
+    public static List<String> toArgs(TestConfig config) {
+        List<String> args = new ArrayList<>();
+        args.add("architecture=" + config.architectureType);
+        args.add("length=" + config.arraysSize);
+        args.add("clients=" + config.numberOfClients);
+        args.add("pause=" + config.pauseBetweenQueries);
+        args.add("queries=" + config.numberOfQueriesFromEachClient);
+        args.add("workerThreads=" + config.workerThreads);
+        args.add("sort=" + config.sortType);
+        args.add("protocol=" + config.protocolVersion);
+        args.add("parallelThreshold=" + config.parallelSortThreshold);
+        if (config.dispatchMode == TestConfig.DispatchMode.HYBRID) {
+            args.add("inlineCostThreshold=" + (int) config.inlineCostThreshold);
+        }
+        args.add("batchSize=" + config.batchSize);
+        args.add("batchWindow=" + config.batchWindow);
+        args.add("cacheMB=" + config.cacheBytes / (1024 * 1024));
+        args.add("distinctArrays=" + config.distinctArrays);
+        args.add("maxInFlightPerConnection=" + config.maxInFlightPerConnection);
+        args.add("maxInFlight=" + config.maxInFlight);
+        args.add("traceStages=" + config.traceStages);
+        args.add("loadMode=" + config.loadMode);
+        args.add("rate=" + (int) config.targetRate);
+        args.add("clientEngine=" + config.clientEngine);
+        args.add("ioThreads=" + config.ioThreads);
+        args.add("selectorThreads=" + config.selectorThreads);
+        args.add("flushPolicy=" + config.flushPolicy);
+        args.add("flushMaxMessages=" + config.flushMaxMessages);
+        args.add("warmup=" + config.warmupQueries);
+        args.add("maxRelativeCi=" + config.maxRelativeCi);
+        return args;
+    }
+
+    public String getOutputName() {
+        return properties.getProperty("output", DEFAULT_OUTPUT);
+    }
+
+    public List<TestConfig> getPoints() {
+        List<String> architectures = getList("architecture", "ASYNC,BLOCKING,NON_BLOCKING,VIRTUAL_THREADS");
+        List<Integer> workerThreads = getIntegers("workerThreads", String.valueOf(Constants.WORKER_THREADS));
+        List<Integer> queries = getIntegers("queries", null);
+        // closed-loop clients wait between queries, so the pause must be given; open-loop clients ignore it
+        boolean closedLoop = getString("loadMode", TestConfig.LoadMode.CLOSED.name()).equals(TestConfig.LoadMode.CLOSED.name());
+        List<Integer> pauses = getIntegers("pause", closedLoop ? null : "0");
+        List<Integer> clients = getIntegers("clients", null);
+        List<Integer> lengths = getIntegers("length", null);
+
+        List<TestConfig> points = new ArrayList<>();
+        for (String architecture : architectures) {
+            for (int threads : workerThreads) {
+                for (int query : queries) {
+                    for (int pause : pauses) {
+                        for (int client : clients) {
+                            for (int length : lengths) {
+                                TestConfig point = new TestConfig(length, client, pause, query, length, length, 1,
+                                        TestConfig.ArchitectureType.valueOf(architecture.toUpperCase(Locale.ROOT)),
+                                        TestConfig.VaryingParameter.LENGTH);
+                                point.workerThreads = threads;
+                                applySettings(point);
+                                points.add(point);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return points;
+    }
+
+    private void applySettings(TestConfig point) {
+        point.sortType = TestConfig.SortType.valueOf(getString("sort", point.sortType.name()));
+        point.protocolVersion = ProtocolVersion.valueOf(getString("protocol", point.protocolVersion.name()));
+        point.parallelSortThreshold = getInteger("parallelThreshold", point.parallelSortThreshold);
+        int inlineCostThreshold = getInteger("inlineCostThreshold", 0);
+        if (inlineCostThreshold > 0) {
+            point.dispatchMode = TestConfig.DispatchMode.HYBRID;
+            point.inlineCostThreshold = inlineCostThreshold;
+        }
+        point.batchSize = getInteger("batchSize", point.batchSize);
+        point.batchWindow = getInteger("batchWindow", point.batchWindow);
+        point.cacheBytes = getInteger("cacheMB", 0) * 1024L * 1024L;
+        point.distinctArrays = getInteger("distinctArrays", point.distinctArrays);
+        point.maxInFlightPerConnection = getInteger("maxInFlightPerConnection", point.maxInFlightPerConnection);
+        point.maxInFlight = getInteger("maxInFlight", point.maxInFlight);
+        point.traceStages = Boolean.parseBoolean(getString("traceStages", String.valueOf(point.traceStages)));
+        point.loadMode = TestConfig.LoadMode.valueOf(getString("loadMode", point.loadMode.name()));
+        point.targetRate = getInteger("rate", (int) point.targetRate);
+        point.clientEngine = TestConfig.ClientEngine.valueOf(getString("clientEngine", point.clientEngine.name()));
+        point.ioThreads = getInteger("ioThreads", point.ioThreads);
+        point.selectorThreads = getInteger("selectorThreads", point.selectorThreads);
+        point.flushPolicy = TestConfig.FlushPolicy.valueOf(getString("flushPolicy", point.flushPolicy.name()));
+        point.flushMaxMessages = getInteger("flushMaxMessages", point.flushMaxMessages);
+        point.warmupQueries = getInteger("warmup", point.warmupQueries);
+        point.repetitions = getInteger("repetitions", point.repetitions);
+        point.maxRelativeCi = parseDouble("maxRelativeCi", getString("maxRelativeCi", String.valueOf(point.maxRelativeCi)));
+        point.serverJvm = Boolean.parseBoolean(getString("serverJvm", String.valueOf(point.serverJvm)));
+        point.serverJvmOptions = properties.getProperty("serverJvmOptions", point.serverJvmOptions).trim();
+        if (point.warmupQueries < 0 || point.repetitions <= 0) {
+            throw new IllegalArgumentException("warmup must be non-negative and repetitions positive");
+        }
+        if (point.loadMode == TestConfig.LoadMode.CLOSED && point.pauseBetweenQueries <= 0) {
+            throw new IllegalArgumentException("pause must be positive for closed-loop load");
+        }
+        if (point.loadMode != TestConfig.LoadMode.CLOSED && point.targetRate <= 0) {
+            throw new IllegalArgumentException("rate must be positive for open-loop load");
+        }
+    }
+
+    private String getString(String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            if (defaultValue == null) {
+                throw new IllegalArgumentException("Missing sweep parameter " + key);
+            }
+            return defaultValue;
+        }
+        return value.trim().toUpperCase(Locale.ROOT);
+    }
+
+    private int getInteger(String key, int defaultValue) {
+        return parseInteger(key, getString(key, String.valueOf(defaultValue)));
+    }
+
+    private List<String> getList(String key, String defaultValue) {
+        List<String> values = new ArrayList<>();
+        for (String value : getString(key, defaultValue).split(",")) {
+            if (!value.trim().isEmpty()) {
+                values.add(value.trim());
+            }
+        }
+        return values;
+    }
+
+    private List<Integer> getIntegers(String key, String defaultValue) {
+        List<Integer> values = new ArrayList<>();
+        for (String value : getList(key, defaultValue)) {
+            int range = value.indexOf("..");
+            if (range < 0) {
+                values.add(parseInteger(key, value));
+                continue;
+            }
+            int stepStart = value.indexOf(':', range);
+            int lower = parseInteger(key, value.substring(0, range));
+            int upper = parseInteger(key, stepStart < 0 ? value.substring(range + 2) : value.substring(range + 2, stepStart));
+            int step = stepStart < 0 ? 1 : parseInteger(key, value.substring(stepStart + 1));
+            if (step <= 0) {
+                throw new IllegalArgumentException("Step of " + key + " must be positive");
+            }
+            for (int i = lower; i <= upper; i += step) {
+                values.add(i);
+            }
+        }
+        return values;
+    }
+
+    private static double parseDouble(String key, String value) {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value of " + key + ": " + value);
+        }
+    }
+
+    private static int parseInteger(String key, String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value of " + key + ": " + value);
+        }
+    }
+}
@@ -1,10 +1,43 @@
 package ru.hse.servers;
 
+import ru.hse.servers.protocol.ProtocolVersion;
+
 public class TestConfig {
      public enum ArchitectureType {
          ASYNC,
          BLOCKING,
-         NON_BLOCKING
+         NON_BLOCKING,
+         VIRTUAL_THREADS
+     }
+
+     public enum SortType {
+         BUBBLE,
+         INSERTION,
+         QUICK,
+         RADIX,
+         COUNTING,
+         ADAPTIVE
+     }
+
+     public enum FlushPolicy {
+         IMMEDIATE,
+         ADAPTIVE
+     }
+
+     public enum DispatchMode {
+         POOL,
+         HYBRID
+     }
+
+     public enum LoadMode {
+         CLOSED,
+         CONSTANT,
+         POISSON
+     }
+
+     public enum ClientEngine {
+         THREADS,
+         VIRTUAL_THREADS
      }
 
      public enum VaryingParameter {
@@ -22,6 +55,35 @@ public class TestConfig {
     public final int step;
     public final ArchitectureType architectureType;
     public final VaryingParameter varyingParameter;
+    public SortType sortType = SortType.BUBBLE;
+    public int parallelSortThreshold = 0;
+    public ProtocolVersion protocolVersion = ProtocolVersion.V1;
+    public int workerThreads = Constants.WORKER_THREADS;
+    public int ioThreads = Constants.IO_THREADS;
+    public int selectorThreads = Constants.SELECTOR_THREADS;
+    public FlushPolicy flushPolicy = FlushPolicy.ADAPTIVE;
+    public int flushMaxMessages = Constants.FLUSH_MAX_MESSAGES;
+    public DispatchMode dispatchMode = DispatchMode.POOL;
+    public double inlineCostThreshold = Constants.INLINE_COST_THRESHOLD;
+    public int batchSize = 1;
+    public int batchWindow = 0;
+    public long cacheBytes = 0;
+    public int distinctArrays = 0;
+    public int maxInFlightPerConnection = 0;
+    public int maxInFlight = 0;
+    public boolean traceStages = false;
+    public LoadMode loadMode = LoadMode.CLOSED;
+    // requests per second from each client in the open-loop modes
+    public double targetRate = 0;
+    public ClientEngine clientEngine = ClientEngine.THREADS;
+    // queries each client sends before the measured ones, their results are thrown away
+    public int warmupQueries = 0;
+    public int repetitions = 1;
+    // a point is unstable when the 95% confidence interval is wider than this share of the mean on either side
+    public double maxRelativeCi = Constants.MAX_RELATIVE_CI;
+    // the server runs in a child JVM started with these options, see ServerProcess
+    public boolean serverJvm = false;
+    public String serverJvmOptions = "";
 
     public TestConfig(int arraysSize,
                       int numberOfClients,
@@ -51,11 +113,43 @@ public class TestConfig {
                 ", step=" + step +
                 ", architectureType=" + architectureType +
                 ", varyingParameter=" + varyingParameter +
+                ", sortType=" + sortType +
+                ", parallelSortThreshold=" + parallelSortThreshold +
+                ", protocolVersion=" + protocolVersion +
+                ", workerThreads=" + workerThreads +
+                ", ioThreads=" + ioThreads +
+                ", selectorThreads=" + selectorThreads +
+                ", flushPolicy=" + flushPolicy +
+                ", flushMaxMessages=" + flushMaxMessages +
+                ", dispatchMode=" + dispatchMode +
+                ", inlineCostThreshold=" + inlineCostThreshold +
+                ", batchSize=" + batchSize +
+                ", batchWindow=" + batchWindow +
+                ", cacheBytes=" + cacheBytes +
+                ", distinctArrays=" + distinctArrays +
+                ", maxInFlightPerConnection=" + maxInFlightPerConnection +
+                ", maxInFlight=" + maxInFlight +
+                ", traceStages=" + traceStages +
+                ", loadMode=" + loadMode +
+                ", targetRate=" + targetRate +
+                ", clientEngine=" + clientEngine +
+                ", warmupQueries=" + warmupQueries +
+                ", repetitions=" + repetitions +
+                ", maxRelativeCi=" + maxRelativeCi +
+                ", serverJvm=" + serverJvm +
+                ", serverJvmOptions='" + serverJvmOptions + '\'' +
                 '}';
     }
 
     public String toCSVFileName() {
-        return architectureType + "_" + varyingParameter + ".csv";
+        String name = architectureType + "_" + varyingParameter;
+        if (sortType != SortType.BUBBLE) {
+            name += "_" + sortType;
+        }
+        if (loadMode != LoadMode.CLOSED) {
+            name += "_" + loadMode;
+        }
+        return name + ".csv";
     }
 
     public void initStepping() {
@@ -1,56 +1,49 @@
 package ru.hse.servers;
 
-import org.apache.commons.lang.ArrayUtils;
-import ru.hse.servers.protocol.message.Message;
+import ru.hse.servers.protocol.ArrayMessage;
+import ru.hse.servers.protocol.FrameCodec;
 
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
-import java.util.Arrays;
-
-import static java.lang.Math.min;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 
 public class Utils {
-    public static void writeMessage(DataOutputStream outputStream, Message message) throws IOException {
-        byte[] data = message.toByteArray();
-        outputStream.writeInt(data.length);
-        outputStream.write(data);
-    }
+    private static final Supplier<ExecutorService> virtualThreadExecutors = findVirtualThreadExecutors();
 
-    public static void writeMessageToChannel(SocketChannel channel, Message message) throws IOException {
-        byte[] data = message.toByteArray();
-        channel.write(ByteBuffer.allocate(data.length + 4).putInt(data.length).put(data).flip());
+    public static ExecutorService newVirtualThreadExecutor() {
+        return virtualThreadExecutors.get();
     }
 
-    public static Message readMessage(DataInputStream inputStream) throws IOException {
-        int len = inputStream.readInt();
-        byte[] data = new byte[0];
-        byte[] buf = new byte[1024];
-        while (len > 0) {
-            int read = inputStream.read(buf, 0, min(1024, len));
-            if (read < 1024) {
-                buf = Arrays.copyOfRange(buf, 0, read);
-            }
-            data = ArrayUtils.addAll(data, buf);
-            len -= read;
+    // Looked up reflectively so the project still compiles for JDKs without virtual threads.
+    // The factory is called once here as well, since it throws where virtual threads are a disabled preview.
+    // Without them VIRTUAL_THREADS fails at startup rather than quietly measuring platform threads.
+    private static Supplier<ExecutorService> findVirtualThreadExecutors() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ((ExecutorService) factory.invoke(null)).shutdown();
+            return () -> {
+                try {
+                    return (ExecutorService) factory.invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException(e);
+                }
+            };
+        } catch (ReflectiveOperationException e) {
+            return () -> {
+                throw new UnsupportedOperationException("Virtual threads are not available in this JVM, run it on JDK 21+");
+            };
         }
-        return Message.parseFrom(data);
     }
 
-    public static Message readMessageFromChannel(SocketChannel channel) throws IOException {
-        ByteBuffer sizeBuf = ByteBuffer.allocate(4);
-        while (sizeBuf.hasRemaining()) {
-            channel.read(sizeBuf);
-        }
-        sizeBuf.flip();
-        int len = sizeBuf.getInt();
-        byte[] data = new byte[len];
-        ByteBuffer buf = ByteBuffer.allocate(len);
-        while (buf.hasRemaining()) {
-            channel.read(buf);
+    public static int writeArrayMessage(DataOutputStream outputStream, ArrayMessage message, FrameCodec codec) throws IOException {
+        ByteBuffer frame = codec.encodeFrame(message);
+        if (message.trace != null) {
+            message.trace.encoded = System.nanoTime();
         }
-        buf.flip();
-        buf.get(data);
-        return Message.parseFrom(data);
+        outputStream.write(frame.array(), 0, frame.limit());
+        return frame.limit();
     }
 }
@@ -1,35 +1,241 @@
 package ru.hse.servers.architectures;
 
-import ru.hse.servers.Constants;
+import ru.hse.servers.BufferPool;
+import ru.hse.servers.LatencyHistogram;
+import ru.hse.servers.RequestTrace;
+import ru.hse.servers.ServerHandle;
 import ru.hse.servers.TestConfig;
+import ru.hse.servers.protocol.ArrayMessage;
+import ru.hse.servers.sort.ParallelSorter;
+import ru.hse.servers.sort.ResultCache;
+import ru.hse.servers.sort.SortEngine;
+import ru.hse.servers.sort.SortEngines;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.concurrent.ExecutorService;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public abstract class AbstractServer implements ServerHandle {
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private static final String[] STAGES = { "Parse", "Queue", "Sort", "SortCpu", "Encode", "Write", "Total" };
 
-public abstract class AbstractServer {
     protected volatile boolean isStopped = false;
-    protected final ExecutorService workers = Executors.newFixedThreadPool(Constants.WORKER_THREADS);
-
-    public List<Integer> processData(List<Integer> data) {
-        Integer[] array = data.toArray(new Integer[0]);
-        for (int i = 0; i < array.length - 1; i++) {
-            for (int j = 0; j < array.length - i - 1; j++) {
-                if (array[j] > array[j + 1]) {
-                    int tmp = array[j];
-                    array[j] = array[j + 1];
-                    array[j + 1] = tmp;
+    protected final ThreadPoolExecutor workers;
+    // splits of a single large request, sized like the workers since parallelParts never asks for more
+    protected final ForkJoinPool sortPool;
+    protected final TestConfig config;
+    protected final InFlightLimiter limiter;
+    protected final LatencyHistogram latencies = new LatencyHistogram();
+    protected final ServerMetrics metrics;
+    private final SortEngine sortEngine;
+    private final ParallelSorter parallelSorter;
+    private final ResultCache resultCache;
+    private final AtomicInteger busyWorkers = new AtomicInteger();
+    private final LongAdder inlineRequests = new LongAdder();
+    private final LongAdder pooledRequests = new LongAdder();
+    private final Map<String, LatencyHistogram> stageLatencies = new LinkedHashMap<>();
+    // the server can not tell warmup requests apart, so it skips as many as all clients send during warmup
+    private final AtomicLong warmupLeft;
+    private final CountDownLatch ready = new CountDownLatch(1);
+
+    protected AbstractServer(TestConfig config) {
+        this.config = config;
+        this.workers = (ThreadPoolExecutor) Executors.newFixedThreadPool(config.workerThreads);
+        this.sortPool = new ForkJoinPool(config.workerThreads);
+        this.sortEngine = SortEngines.create(config.sortType);
+        this.parallelSorter = new ParallelSorter(sortEngine, sortPool);
+        this.resultCache = config.cacheBytes > 0 ? new ResultCache(config.cacheBytes) : null;
+        this.limiter = new InFlightLimiter(config.maxInFlightPerConnection, config.maxInFlight);
+        this.warmupLeft = new AtomicLong((long) config.warmupQueries * config.numberOfClients);
+        for (String stage : STAGES) {
+            stageLatencies.put(stage, new LatencyHistogram());
+        }
+        this.metrics = new ServerMetrics(this);
+    }
+
+    protected void traceMessage(ArrayMessage message, long received) {
+        if (config.traceStages) {
+            message.trace = new RequestTrace(received, System.nanoTime());
+        }
+    }
+
+    // sorts every task of a frame, the recorded time of a task is its sort alone on every architecture;
+    // waiting for a worker is the Queue stage of a trace
+    protected void processMessage(ArrayMessage message) {
+        RequestTrace trace = message.trace;
+        long cpuStart = 0;
+        if (trace != null) {
+            trace.dequeued = System.nanoTime();
+            cpuStart = threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() : -1;
+        }
+        for (ArrayMessage entry = message; entry != null; entry = entry.next) {
+            long start = System.nanoTime();
+            processData(entry.array, entry.length);
+            long end = System.nanoTime();
+            if (!isStopped) {
+                if (isWarmup()) {
+                    if (trace != null) {
+                        trace.warmup = true;
+                    }
+                } else {
+                    latencies.record(end - start);
                 }
+                metrics.requestProcessed(end - start);
             }
         }
-        return new ArrayList<>(Arrays.asList(array));
+        if (trace != null) {
+            trace.sorted = System.nanoTime();
+            long cpuEnd = cpuStart < 0 ? -1 : threadBean.getCurrentThreadCpuTime();
+            trace.sortCpu = cpuEnd < 0 ? -1 : cpuEnd - cpuStart;
+        }
+    }
+
+    private boolean isWarmup() {
+        return warmupLeft.get() > 0 && warmupLeft.getAndDecrement() > 0;
+    }
+
+    // Encode runs from the end of the sort until the response is encoded, so it includes waiting for the writer
+    protected void finishTrace(RequestTrace trace) {
+        if (trace == null || trace.warmup) {
+            return;
+        }
+        trace.written = System.nanoTime();
+        stageLatencies.get("Parse").record(trace.parsed - trace.received);
+        stageLatencies.get("Queue").record(trace.dequeued - trace.parsed);
+        stageLatencies.get("Sort").record(trace.sorted - trace.dequeued);
+        if (trace.sortCpu >= 0) {
+            stageLatencies.get("SortCpu").record(trace.sortCpu);
+        }
+        stageLatencies.get("Encode").record(trace.encoded - trace.sorted);
+        stageLatencies.get("Write").record(trace.written - trace.encoded);
+        stageLatencies.get("Total").record(trace.written - trace.received);
+    }
+
+    public void processData(int[] array, int length) {
+        if (resultCache != null) {
+            resultCache.sort(array, length, this::sortArray);
+        } else {
+            sortArray(array, length);
+        }
+    }
+
+    private void sortArray(int[] array, int length) {
+        int busy = busyWorkers.incrementAndGet();
+        try {
+            int parts = parallelParts(length, busy);
+            if (parts > 1) {
+                parallelSorter.sort(array, 0, length, parts);
+            } else {
+                sortEngine.sort(array, 0, length);
+            }
+        } finally {
+            busyWorkers.decrementAndGet();
+        }
+    }
+
+    // only the cores other workers are not using right now are given to a single request
+    private int parallelParts(int length, int busy) {
+        if (config.parallelSortThreshold <= 0 || length < config.parallelSortThreshold) {
+            return 1;
+        }
+        if (!workers.getQueue().isEmpty()) {
+            return 1;
+        }
+        return Math.max(1, config.workerThreads - busy + 1);
+    }
+
+    protected void dispatch(int length, Runnable task) {
+        dispatch(length, task, workers);
+    }
+
+    // in HYBRID mode requests that are cheaper to sort than to hand off run on the calling I/O thread
+    protected void dispatch(int length, Runnable task, Executor pool) {
+        if (config.dispatchMode == TestConfig.DispatchMode.HYBRID
+                && sortEngine.estimateCost(length) <= config.inlineCostThreshold) {
+            inlineRequests.increment();
+            task.run();
+        } else {
+            pooledRequests.increment();
+            pool.execute(task);
+        }
     }
 
     public abstract void start() throws IOException;
     public abstract void stop() throws IOException;
-    public abstract double getMeanTime();
+
+    // called by start once the server socket is bound, clients may connect from then on
+    protected void markReady() {
+        metrics.register();
+        ready.countDown();
+    }
+
+    public boolean awaitReady(long timeoutMillis) throws InterruptedException {
+        return ready.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public double getMeanTime() {
+        return latencies.getMean() / 1e6;
+    }
+
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    public Map<String, LatencyHistogram> getStageLatencies() {
+        return stageLatencies;
+    }
+
+    public int getQueueDepth() {
+        return workers.getQueue().size();
+    }
+
+    public int getInFlight() {
+        return limiter.getInFlight();
+    }
+
+    public int[] sample() {
+        return new int[] { getQueueDepth(), getInFlight() };
+    }
+
+    public int getActiveWorkers() {
+        return busyWorkers.get();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("InlineRequests", inlineRequests.sum());
+        stats.put("PooledRequests", pooledRequests.sum());
+        stats.put("MaxInFlight", limiter.getMaxInFlight());
+        stats.put("Throttles", limiter.getThrottles());
+        stats.put("ThrottledMillis", limiter.getThrottledMillis());
+        stats.put("BytesIn", metrics.getBytesIn());
+        stats.put("BytesOut", metrics.getBytesOut());
+        stats.put("SelectorWakeups", metrics.getSelectorWakeups());
+        stats.put("ZeroSelects", metrics.getZeroSelects());
+        stats.put("CompletionFailures", metrics.getCompletionFailures());
+        // the pool is shared by everything in the server JVM, buffers still outstanding after a stop are leaked
+        stats.put("PooledBuffersOutstanding", BufferPool.SHARED.getOutstanding());
+        stats.put("BufferPoolHitRate", BufferPool.SHARED.getHitRate());
+        if (resultCache != null) {
+            stats.put("CacheHitRate", resultCache.getHitRate());
+            stats.put("CacheBytesSaved", resultCache.getBytesSaved());
+            stats.put("CacheHits", resultCache.getHits());
+            stats.put("CacheSharedFlights", resultCache.getSharedFlights());
+            stats.put("CacheMisses", resultCache.getMisses());
+            stats.put("CacheEvictions", resultCache.getEvictions());
+            stats.put("CacheUsedBytes", resultCache.getUsedBytes());
+        }
+        return stats;
+    }
 }
@@ -1,47 +1,56 @@
 package ru.hse.servers.architectures;
 
-import com.google.protobuf.InvalidProtocolBufferException;
-import org.apache.commons.lang.ArrayUtils;
+import ru.hse.servers.BufferPool;
 import ru.hse.servers.Constants;
+import ru.hse.servers.RequestTrace;
 import ru.hse.servers.TestConfig;
-import ru.hse.servers.protocol.message.Message;
+import ru.hse.servers.protocol.ArrayMessage;
+import ru.hse.servers.protocol.FrameDecoder;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
-import java.util.ArrayDeque;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
-import static java.lang.Math.min;
-
 public class AsynchronousServer extends AbstractServer {
-    private final TestConfig config;
+    private static final long STOP_TIMEOUT_MS = 1000;
+
     private volatile boolean isWorking = true;
     private final ReentrantLock waitLock = new ReentrantLock();
     private final Condition finishCondition = waitLock.newCondition();
-    private final List<Long> results = new ArrayList<>();
     private final CountDownLatch startLatch;
+    private AsynchronousChannelGroup channelGroup;
+    // drains connections resumed by the limiter, so a release never reads on behalf of another connection
+    private final ExecutorService readResumer = Executors.newSingleThreadExecutor();
+    private final ReadHandler readHandler = new ReadHandler();
+    private final WriteHandler writeHandler = new WriteHandler();
 
     public AsynchronousServer(TestConfig config, CountDownLatch startLatch) {
-        this.config = config;
+        super(config);
         this.startLatch = startLatch;
     }
 
     @Override
     public void start() throws IOException {
-        try (AsynchronousServerSocketChannel acceptChannel = AsynchronousServerSocketChannel.open()) {
-            acceptChannel.bind(new InetSocketAddress(Constants.PORT));
+        channelGroup = AsynchronousChannelGroup.withFixedThreadPool(config.ioThreads, Executors.defaultThreadFactory());
+        try (AsynchronousServerSocketChannel acceptChannel = AsynchronousServerSocketChannel.open(channelGroup)) {
+            acceptChannel.bind(new InetSocketAddress(Constants.PORT), Math.max(50, config.numberOfClients));
+            markReady();
             acceptChannel.accept(acceptChannel, new AcceptHandler());
             try {
                 waitLock.lock();
@@ -66,93 +75,160 @@ public class AsynchronousServer extends AbstractServer {
         } finally {
             waitLock.unlock();
             workers.shutdownNow();
+            sortPool.shutdownNow();
+            metrics.unregister();
+            readResumer.shutdownNow();
+            if (channelGroup != null) {
+                channelGroup.shutdownNow();
+                // handlers of the closed channels still release their buffers, the pool is counted after that
+                try {
+                    channelGroup.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
         }
     }
 
-    @Override
-    public double getMeanTime() {
-        return ((double) results.stream().reduce(0L, Long::sum)) / results.size();
-    }
-
-    private static class ClientHandler {
-        public Queue<ByteBuffer> bufferQueue = new ConcurrentLinkedQueue<>();
-        public volatile boolean isWriting = false;
-        private int messageLen;
-        private int numberOfTasks;
-        private int tasksCompleted;
-        private int userId;
-        private int taskId;
-        byte[] message = new byte[0];
-        public ByteBuffer readBuffer = ByteBuffer.allocate(1024);
-        public ByteBuffer writeBuffer;
-        public List<Integer> result;
+    private class ClientHandler {
+        private final Queue<ByteBuffer> bufferQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean isWriting = new AtomicBoolean();
+        private final Queue<int[]> spareArrays = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger tasksQueued = new AtomicInteger();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicBoolean paused = new AtomicBoolean();
+        private ArrayMessage parked;
+        private long throttledSince;
+        private final Queue<RequestTrace> pendingTraces = new ConcurrentLinkedQueue<>();
+        public final FrameDecoder decoder = new FrameDecoder(BufferPool.SHARED);
         public final AsynchronousSocketChannel channel;
 
         private ClientHandler(AsynchronousSocketChannel channel) {
             this.channel = channel;
         }
 
-        public void fillMessage() {
-            readBuffer.flip();
+        public ArrayMessage nextMessage() throws IOException {
+            ByteBuffer body = decoder.nextFrame();
+            if (body == null) {
+                return null;
+            }
+            long received = System.nanoTime();
+            ArrayMessage message = decoder.getCodec().decode(body, spareArrays.poll());
+            traceMessage(message, received);
+            return message;
+        }
 
-            if (numberOfTasks == 0) {
-                if (readBuffer.remaining() >= 4) {
-                    numberOfTasks = readBuffer.getInt();
-                }
-                else {
-                    readBuffer.flip();
-                    return;
+        // the next read is issued only after every decoded request was admitted
+        public void drain() {
+            try {
+                while (true) {
+                    ArrayMessage msg = parked != null ? parked : nextMessage();
+                    if (msg == null) {
+                        break;
+                    }
+                    if (!limiter.tryAcquire(inFlight)) {
+                        if (parked == null) {
+                            parked = msg;
+                            throttledSince = System.nanoTime();
+                        }
+                        paused.set(true);
+                        limiter.park(inFlight, this::resumeRead);
+                        return;
+                    }
+                    if (parked != null) {
+                        limiter.throttled(System.nanoTime() - throttledSince);
+                        parked = null;
+                    }
+                    dispatch(msg.totalLength(), () -> {
+                        processMessage(msg);
+                        try {
+                            sendResult(msg);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    });
                 }
+            } catch (IOException e) {
+                // a malformed frame leaves the stream unsynchronized, so the connection is dropped
+                abort();
+                return;
+            }
+            if (channel.isOpen()) {
+                channel.read(decoder.getReadTarget(), this, readHandler);
+            } else {
+                // the last response was already written and the channel closed while this drained
+                abort();
             }
+        }
 
-            if (messageLen == 0) {
-                if (readBuffer.remaining() >= 4) {
-                    messageLen = readBuffer.getInt();
-                }
-                else {
-                    readBuffer.compact();
-                    return;
-                }
+        // no read is pending here, so the read handler will not release the connection
+        private void abort() {
+            try {
+                channel.close();
+            } catch (IOException ignore) {
             }
-            int readyToRead = readBuffer.remaining();
-            int willRead = min(readyToRead, messageLen - message.length);
-            byte[] tmp = new byte[willRead];
-            readBuffer.get(tmp, 0, willRead);
-            message = ArrayUtils.addAll(message, tmp);
-            readBuffer.compact();
+            decoder.release();
+            metrics.connectionClosed();
         }
 
-        public boolean isMessageCollected() {
-            return messageLen > 0 && message.length == messageLen;
+        private void resumeRead() {
+            if (paused.compareAndSet(true, false)) {
+                try {
+                    readResumer.execute(this::drain);
+                } catch (RejectedExecutionException ignore) {
+                }
+            }
         }
 
-        public Message getMessage() throws InvalidProtocolBufferException {
-            if (!isMessageCollected()) {
-                return null;
+        public void sendResult(ArrayMessage result) throws IOException {
+            ByteBuffer writeBuffer = decoder.getCodec().encodeFrame(result, BufferPool.SHARED);
+            // a frame takes one spare array however many tasks it carries, so only one goes back
+            spareArrays.offer(result.array);
+            if (result.trace != null) {
+                result.trace.encoded = System.nanoTime();
+                // workers respond concurrently, so a frame and its trace are queued together
+                synchronized (pendingTraces) {
+                    bufferQueue.offer(writeBuffer);
+                    pendingTraces.offer(result.trace);
+                }
+            } else {
+                bufferQueue.offer(writeBuffer);
             }
-            Message msg = Message.parseFrom(message);
-            userId = msg.getClientId();
-            taskId = msg.getTaskId();
-            return msg;
+            tasksQueued.addAndGet(result.taskCount());
+            startWrite();
         }
 
-        public void makeWriteBuffer() {
-            byte[] response = Message.newBuilder().setTaskId(taskId).setClientId(userId).addAllArray(result).build().toByteArray();
-            writeBuffer = ByteBuffer.allocate(4 + response.length);
-            writeBuffer.putInt(response.length);
-            writeBuffer.put(response);
-            writeBuffer.flip();
-            bufferQueue.offer(writeBuffer);
+        // whoever takes the flag writes the head of the queue, the write handler passes it on
+        public void startWrite() {
+            if (!channel.isOpen()) {
+                releaseWrites();
+                return;
+            }
+            while (!bufferQueue.isEmpty() && isWriting.compareAndSet(false, true)) {
+                ByteBuffer next = bufferQueue.peek();
+                if (next != null && channel.isOpen()) {
+                    channel.write(next, this, writeHandler);
+                    return;
+                }
+                isWriting.set(false);
+                if (!channel.isOpen()) {
+                    releaseWrites();
+                    return;
+                }
+            }
         }
 
-        public void resetRead() {
-            messageLen = 0;
-            message = new byte[0];
+        // frames queued after the channel was closed are never written
+        public void releaseWrites() {
+            ByteBuffer buffer;
+            while ((buffer = bufferQueue.poll()) != null) {
+                BufferPool.SHARED.release(buffer);
+            }
         }
 
+        // a task is counted only after its frame is queued, so an empty queue at the full count means everything was written
         public void resetWrite() {
-            tasksCompleted++;
-            if (tasksCompleted == numberOfTasks) {
+            if (tasksQueued.get() == decoder.getNumberOfTasks() && bufferQueue.isEmpty()) {
                 try {
                     channel.close();
                 } catch (IOException e) {
@@ -168,8 +244,9 @@ public class AsynchronousServer extends AbstractServer {
             if (attachment.isOpen()) {
                 attachment.accept(attachment, this);
                 ClientHandler clientContext = new ClientHandler(result);
+                metrics.connectionOpened();
                 startLatch.countDown();
-                result.read(clientContext.readBuffer, clientContext, new ReadHandler());
+                result.read(clientContext.decoder.getReadTarget(), clientContext, readHandler);
             }
             if (result != null && result.isOpen()) {
                 System.out.println("Accepted client");
@@ -178,67 +255,62 @@ public class AsynchronousServer extends AbstractServer {
 
         @Override
         public void failed(Throwable exc, AsynchronousServerSocketChannel attachment) {
+            if (!(exc instanceof AsynchronousCloseException)) {
+                metrics.completionFailed();
+            }
         }
     }
 
     private class ReadHandler implements CompletionHandler<Integer, ClientHandler> {
         @Override
         public void completed(Integer result, ClientHandler attachment) {
-            attachment.fillMessage();
-            if (attachment.isMessageCollected()) {
-                try {
-                    Message msg = attachment.getMessage();
-                    long start = System.currentTimeMillis();
-                    Future<?> future = workers.submit(() -> {attachment.result = processData(msg.getArrayList());});
-                    future.get();
-                    long end = System.currentTimeMillis();
-                    if (!isStopped) {
-                        results.add(end - start);
-                    }
-                    attachment.makeWriteBuffer();
-                    attachment.resetRead();
-                    if (attachment.channel.isOpen() && !attachment.isWriting) {
-                        attachment.isWriting = true;
-                        attachment.channel.write(attachment.bufferQueue.peek(), attachment, new WriteHandler());
-                    }
-                } catch (InvalidProtocolBufferException | InterruptedException | ExecutionException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-            if (attachment.channel.isOpen()) {
-            attachment.channel.read(attachment.readBuffer, attachment, this);
+            if (result < 0) {
+                attachment.decoder.release();
+                metrics.connectionClosed();
+                return;
             }
+            metrics.bytesRead(result);
+            attachment.drain();
         }
 
         @Override
-        public void failed(Throwable ignore, ClientHandler attachment) {
+        public void failed(Throwable exc, ClientHandler attachment) {
+            // the channel is closed here after the last response, so a pending read ends this way
+            if (!(exc instanceof AsynchronousCloseException)) {
+                metrics.completionFailed();
+            }
+            metrics.connectionClosed();
+            attachment.decoder.release();
         }
     }
 
     private class WriteHandler implements CompletionHandler<Integer, ClientHandler> {
         @Override
         public void completed(Integer result, ClientHandler attachment) {
-            if (attachment.bufferQueue.peek().hasRemaining()) {
+            metrics.bytesWritten(result);
+            ByteBuffer current = attachment.bufferQueue.peek();
+            if (current.hasRemaining()) {
                 if (attachment.channel.isOpen()) {
-                    attachment.channel.write(attachment.bufferQueue.peek(), attachment, this);
-                }
-            }
-            else if (attachment.channel.isOpen()) {
-                attachment.resetWrite();
-                attachment.bufferQueue.poll();
-                if (attachment.channel.isOpen()) {
-                    if (attachment.bufferQueue.size() == 0) {
-                        attachment.isWriting = false;
-                    }
-                    else {
-                        attachment.channel.write(attachment.bufferQueue.peek(), attachment, this);
-                    }
+                    attachment.channel.write(current, attachment, this);
+                } else {
+                    attachment.releaseWrites();
                 }
+                return;
             }
+            BufferPool.SHARED.release(attachment.bufferQueue.poll());
+            limiter.release(attachment.inFlight);
+            finishTrace(attachment.pendingTraces.poll());
+            attachment.resetWrite();
+            attachment.isWriting.set(false);
+            attachment.startWrite();
         }
 
         @Override
-        public void failed(Throwable ignore, ClientHandler attachment) {
+        public void failed(Throwable exc, ClientHandler attachment) {
+            if (!(exc instanceof AsynchronousCloseException)) {
+                metrics.completionFailed();
+            }
+            attachment.releaseWrites();
         }
     }
 }
@@ -1,12 +1,14 @@
 package ru.hse.servers.architectures;
 
-import ru.hse.servers.Client;
 import ru.hse.servers.Constants;
+import ru.hse.servers.RequestTrace;
 import ru.hse.servers.TestConfig;
 import ru.hse.servers.Utils;
-import ru.hse.servers.protocol.message.Message;
+import ru.hse.servers.protocol.ArrayMessage;
+import ru.hse.servers.protocol.FrameCodec;
+import ru.hse.servers.protocol.FrameReader;
 
-import java.io.DataInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
@@ -15,28 +17,39 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.stream.Collectors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class BlockingServer extends AbstractServer {
-    private final TestConfig config;
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
     private ServerSocket serverSocket;
     private final ExecutorService acceptWorker = Executors.newSingleThreadExecutor();
     private volatile boolean isWorking = true;
     private final List<ClientHandler> clients = new ArrayList<>();
     private final CountDownLatch startLatch;
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushedMessages = new LongAdder();
+    private final AtomicInteger maxMessagesPerFlush = new AtomicInteger();
 
     public BlockingServer(TestConfig config, CountDownLatch startLatch) {
-        this.config = config;
+        super(config);
         this.startLatch = startLatch;
     }
 
     @Override
     public void start() throws IOException {
-        serverSocket = new ServerSocket(Constants.PORT);
+        serverSocket = new ServerSocket(Constants.PORT, Math.max(50, config.numberOfClients));
+        markReady();
         acceptWorker.submit(() -> acceptClients(serverSocket));
     }
 
@@ -48,6 +61,7 @@ public class BlockingServer extends AbstractServer {
                     System.out.println("Accepted client");
                     ClientHandler handler = new ClientHandler(clientSocket);
                     clients.add(handler);
+                    metrics.connectionOpened();
                     startLatch.countDown();
                     handler.processClient();
                 } catch (SocketException ignore) {
@@ -68,15 +82,21 @@ public class BlockingServer extends AbstractServer {
         serverSocket.close();
         acceptWorker.shutdown();
         workers.shutdown();
+        sortPool.shutdownNow();
+        metrics.unregister();
         for (ClientHandler client : clients) {
             client.stop();
         }
     }
 
     @Override
-    public double getMeanTime() {
-        List<Long> results = clients.stream().flatMap(c -> c.results.stream()).collect(Collectors.toList());
-        return ((double) results.stream().reduce(0L, Long::sum)) / results.size();
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = super.getStats();
+        long flushCount = flushes.sum();
+        stats.put("Flushes", flushCount);
+        stats.put("MeanMessagesPerFlush", flushCount == 0 ? 0 : (double) flushedMessages.sum() / flushCount);
+        stats.put("MaxMessagesPerFlush", maxMessagesPerFlush.get());
+        return stats;
     }
 
     private class ClientHandler {
@@ -85,73 +105,125 @@ public class BlockingServer extends AbstractServer {
         public final ExecutorService reader = Executors.newSingleThreadExecutor();
         public final ExecutorService writer = Executors.newSingleThreadExecutor();
 
-        private final DataInputStream inputStream;
+        private final FrameReader inputStream;
         private final DataOutputStream outputStream;
 
         private volatile boolean working = true;
+        private volatile FrameCodec codec;
 
-        public final List<Long> results = new CopyOnWriteArrayList<>();
+        private final Queue<int[]> spareArrays = new ConcurrentLinkedQueue<>();
+        private final BlockingQueue<ArrayMessage> responses = new LinkedBlockingQueue<>();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicBoolean closed = new AtomicBoolean();
 
         public ClientHandler(Socket socket) throws IOException {
             this.socket = socket;
-            inputStream = new DataInputStream(socket.getInputStream());
-            outputStream = new DataOutputStream(socket.getOutputStream());
+            inputStream = new FrameReader(socket.getInputStream());
+            outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE));
         }
 
-        private void sendData(int clientId, int taskId, List<Integer> data) {
-            writer.submit(() -> {
-                try {
-                    Utils.writeMessage(outputStream, Message.newBuilder()
-                            .setClientId(clientId).setTaskId(taskId).addAllArray(data).build());
-                } catch (SocketException ignore) {
-                } catch (IOException e) {
-                    e.printStackTrace();
+        private void sendData(ArrayMessage data) {
+            responses.offer(data);
+        }
+
+        // Waits for a response when idle, then writes everything that is ready before one flush
+        private void writeResponses(int numberOfQueries) {
+            int written = 0;
+            List<RequestTrace> flushedTraces = new ArrayList<>();
+            try {
+                while (written < numberOfQueries) {
+                    ArrayMessage data = responses.take();
+                    int batch = 0;
+                    while (data != null) {
+                        metrics.bytesWritten(Utils.writeArrayMessage(outputStream, data, codec));
+                        limiter.release(inFlight);
+                        if (data.trace != null) {
+                            flushedTraces.add(data.trace);
+                        }
+                        spareArrays.offer(data.array);
+                        written += data.taskCount();
+                        batch++;
+                        if (config.flushPolicy == TestConfig.FlushPolicy.IMMEDIATE || batch >= config.flushMaxMessages) {
+                            break;
+                        }
+                        data = responses.poll();
+                    }
+                    outputStream.flush();
+                    for (RequestTrace trace : flushedTraces) {
+                        finishTrace(trace);
+                    }
+                    flushedTraces.clear();
+                    flushes.increment();
+                    flushedMessages.add(batch);
+                    maxMessagesPerFlush.accumulateAndGet(batch, Math::max);
                 }
-            });
+            } catch (InterruptedException | SocketException ignore) {
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                connectionClosed();
+            }
+        }
+
+        // the writer, a failed reader and stop may all end the connection, it is counted once
+        private void connectionClosed() {
+            if (closed.compareAndSet(false, true)) {
+                metrics.connectionClosed();
+            }
         }
 
         public void processClient() {
             reader.submit(() -> {
                 try {
-                    int numberOfQueries = inputStream.readInt();
+                    codec = inputStream.readHandshake().codec;
+                    int numberOfQueries = inputStream.getNumberOfTasks();
+                    writer.submit(() -> writeResponses(numberOfQueries));
                     //int clientId = inputStream.readInt();
                     //System.out.println("NQ " + numberOfQueries);
-                    for (int i = 0; i < numberOfQueries; i++) {
-                        Message msg = Utils.readMessage(inputStream);
-                        List<Integer> data = msg.getArrayList();
+                    int received = 0;
+                    while (received < numberOfQueries) {
+                        limiter.acquire(inFlight);
+                        ArrayMessage msg = inputStream.readMessage(codec, spareArrays.poll());
+                        traceMessage(msg, inputStream.getFrameStart());
+                        metrics.bytesRead(inputStream.getFrameSize());
+                        received += msg.taskCount();
                         //int finalI = i;
-                        workers.submit(() -> {
+                        dispatch(msg.totalLength(), () -> {
                             //System.out.println("Client " + clientId + " started sorting");
-                            long start = System.currentTimeMillis();
-                            List<Integer> result = processData(data);
-                            long end = System.currentTimeMillis();
-                            if (!isStopped) {
-                                results.add(end - start);
-                            }
+                            processMessage(msg);
                             //System.out.println("Client " + clientId + " finished sorting");
-                            sendData(msg.getClientId(), msg.getTaskId(), result);
+                            sendData(msg);
                             //System.out.println("Client " + clientId + " result sent");
                             //System.out.println("Wrote " + finalI);
                         });
                     }
-                } catch (SocketException | EOFException ignore) {
+                } catch (SocketException | EOFException | InterruptedException ignore) {
                 } catch (IOException e) {
+                    // a malformed handshake or frame, the writer would wait for responses that never come
                     e.printStackTrace();
+                    writer.shutdownNow();
+                    closeSocket();
+                    connectionClosed();
                 }
             });
         }
 
+        private void closeSocket() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
         public void stop() {
             System.out.println("Stopping client handler");
             isStopped = false;
             working = false;
             reader.shutdownNow();
             writer.shutdownNow();
-            try {
-                socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            closeSocket();
+            connectionClosed();
         }
     }
 }
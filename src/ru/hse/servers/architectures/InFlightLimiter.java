@@ -0,0 +1,135 @@
+package ru.hse.servers.architectures;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Counts requests that were read but whose responses are not written yet, per connection
+// and for the whole server. A request is one frame, so a batched V2 frame takes a single permit
+// however many tasks it carries. A connection acquires from a single reading thread at a time,
+// releases may come from any thread. A limit of 0 means no limit.
+public class InFlightLimiter {
+    private final int maxPerConnection;
+    private final int maxTotal;
+    private final AtomicInteger total = new AtomicInteger();
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final AtomicInteger blockedReaders = new AtomicInteger();
+
+    private final LongAdder throttles = new LongAdder();
+    private final LongAdder throttledNanos = new LongAdder();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    public InFlightLimiter(int maxPerConnection, int maxTotal) {
+        this.maxPerConnection = maxPerConnection;
+        this.maxTotal = maxTotal;
+    }
+
+    public boolean tryAcquire(AtomicInteger connection) {
+        if (maxPerConnection > 0 && connection.get() >= maxPerConnection) {
+            return false;
+        }
+        while (true) {
+            int current = total.get();
+            if (maxTotal > 0 && current >= maxTotal) {
+                return false;
+            }
+            if (total.compareAndSet(current, current + 1)) {
+                maxInFlight.accumulateAndGet(current + 1, Math::max);
+                break;
+            }
+        }
+        connection.incrementAndGet();
+        return true;
+    }
+
+    // for servers with a reading thread per connection
+    public void acquire(AtomicInteger connection) throws InterruptedException {
+        if (tryAcquire(connection)) {
+            return;
+        }
+        long start = System.nanoTime();
+        lock.lock();
+        blockedReaders.incrementAndGet();
+        try {
+            while (!tryAcquire(connection)) {
+                released.await();
+            }
+        } finally {
+            blockedReaders.decrementAndGet();
+            lock.unlock();
+        }
+        throttled(System.nanoTime() - start);
+    }
+
+    // for event driven servers: resume is run once after a release on the releasing thread, so it should
+    // only hand the connection back to its own I/O thread and never read there
+    public void park(AtomicInteger connection, Runnable resume) {
+        waiting.offer(resume);
+        if (hasCapacity(connection)) {
+            resumeWaiting();
+        }
+    }
+
+    public void release(AtomicInteger connection) {
+        connection.decrementAndGet();
+        total.decrementAndGet();
+        resumeWaiting();
+        if (blockedReaders.get() > 0) {
+            lock.lock();
+            try {
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private boolean hasCapacity(AtomicInteger connection) {
+        return (maxPerConnection <= 0 || connection.get() < maxPerConnection)
+                && (maxTotal <= 0 || total.get() < maxTotal);
+    }
+
+    // a connection that parks again while being resumed waits for the next release
+    private void resumeWaiting() {
+        // nothing ever parks without limits, so most releases end here without allocating
+        if (waiting.isEmpty()) {
+            return;
+        }
+        List<Runnable> resumed = new ArrayList<>();
+        Runnable resume;
+        while ((resume = waiting.poll()) != null) {
+            resumed.add(resume);
+        }
+        for (Runnable action : resumed) {
+            action.run();
+        }
+    }
+
+    public void throttled(long nanos) {
+        throttles.increment();
+        throttledNanos.add(nanos);
+    }
+
+    public int getInFlight() {
+        return total.get();
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+
+    public long getThrottles() {
+        return throttles.sum();
+    }
+
+    public double getThrottledMillis() {
+        return throttledNanos.sum() / 1e6;
+    }
+}
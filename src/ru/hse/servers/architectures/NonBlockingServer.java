@@ -1,150 +1,56 @@
 package ru.hse.servers.architectures;
 
-import com.google.protobuf.InvalidProtocolBufferException;
-import org.apache.commons.lang.ArrayUtils;
+import ru.hse.servers.BufferPool;
 import ru.hse.servers.Constants;
+import ru.hse.servers.RequestTrace;
 import ru.hse.servers.TestConfig;
-import ru.hse.servers.protocol.message.Message;
+import ru.hse.servers.protocol.ArrayMessage;
+import ru.hse.servers.protocol.FrameDecoder;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.*;
-import java.util.stream.Collectors;
-
-import static java.lang.Math.min;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class NonBlockingServer extends AbstractServer {
+    private static final long STOP_TIMEOUT_MS = 1000;
+
     private volatile boolean isWorking = true;
 
-    private Selector readSelector;
-    private Selector writeSelector;
-    private final ExecutorService readPool = Executors.newSingleThreadExecutor();
-    private final ExecutorService writePool = Executors.newSingleThreadExecutor();
+    private final EventLoop[] loops;
+    private final ExecutorService loopPool;
 
-    private final Queue<ClientHandler> readQueue = new ConcurrentLinkedQueue<>();
     private final List<ClientHandler> clients = new CopyOnWriteArrayList<>();
-    private final List<Integer> sentMsgs = new CopyOnWriteArrayList<>();
-
-    private final TestConfig config;
 
     private final CountDownLatch startLatch;
 
     public NonBlockingServer(TestConfig config, CountDownLatch startLatch) {
-        this.config = config;
+        super(config);
         this.startLatch = startLatch;
+        loops = new EventLoop[Math.max(1, config.selectorThreads)];
+        loopPool = Executors.newFixedThreadPool(loops.length);
     }
 
     @Override
     public void start() throws IOException {
-        readSelector = Selector.open();
-        writeSelector = Selector.open();
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(Selector.open());
+        }
 
         try (ServerSocketChannel serverSocketChannel = ServerSocketChannel.open()) {
-            serverSocketChannel.bind(new InetSocketAddress(Constants.PORT));
-            readPool.submit(() -> {
-               while (isWorking) {
-                   try {
-                       while (!readQueue.isEmpty()) {
-                           ClientHandler handler = readQueue.poll();
-                           if (handler == null) {
-                               break;
-                           }
-                           handler.channel.register(readSelector, SelectionKey.OP_READ, handler);
-                       }
-
-                       if (readSelector.select(1000) == 0) {
-                            continue;
-                       }
-                       Iterator<SelectionKey> iterator = readSelector.selectedKeys().iterator();
-                       while (iterator.hasNext()) {
-                           SelectionKey selectionKey = iterator.next();
-                           ClientHandler handler = (ClientHandler)selectionKey.attachment();
-
-                           if (handler.isFinished()) {
-                               selectionKey.cancel();
-                               iterator.remove();
-                               continue;
-                           }
-
-                           handler.channel.read(handler.readBuffer);
-                           handler.fillMessage();
-
-                           if (handler.isMessageCollected()) {
-                               //Client . finished
-                               //System.out.println("Collected message");
-                               List<Integer> receivedData = handler.getMessage().getArrayList();
-                               //System.out.println("Collected message " + handler.userId);
-                               workers.submit(() -> {
-                                   long start = System.currentTimeMillis();
-                                   List<Integer> result = processData(receivedData);
-                                   long end = System.currentTimeMillis();
-                                   handler.results.add(end - start);
-                                   Message response = Message.newBuilder()
-                                           .setTaskId(handler.taskId).setClientId(handler.userId).addAllArray(result).build();
-                                   handler.messages.offer(response);
-                                   //handler.makeWriteBuffer();
-                                   //writeQueue.offer(handler);
-                                   writeSelector.wakeup();
-                               });
-                               handler.resetRead();
-                           }
-
-                           iterator.remove();
-                       }
-                   } catch (IOException ignore) {
-                   }
-               }
-            });
-
-            writePool.submit(() -> {
-                while (isWorking) {
-                    try {
-                        for (int i = 0; i < clients.size(); i++) {
-                            ClientHandler handler = clients.get(i);
-                            if ((!handler.everStarted || !handler.writeBuffer.hasRemaining()) && !handler.messages.isEmpty()) {
-                                handler.everStarted = true;
-                                handler.resetWrite();
-                                Message message = handler.messages.poll();
-                                handler.makeWriteBuffer(message);
-                                //System.out.println("Registering");
-                                handler.channel.register(writeSelector, SelectionKey.OP_WRITE, handler);
-                                //System.out.println("Registered");
-                            }
-                        }
-                        //System.out.println(sentMsgs);
-                        if (writeSelector.select(1000) == 0) {
-                            continue;
-                        }
-                        //System.out.println("Selected");
-                        Iterator<SelectionKey> iterator = writeSelector.selectedKeys().iterator();
-                        while (iterator.hasNext()) {
-                            SelectionKey selectionKey = iterator.next();
-                            ClientHandler handler = (ClientHandler)selectionKey.attachment();
-
-                            handler.channel.write(handler.writeBuffer);
-                            //System.out.println("Writting data " + handler.userId);
-                            if (!handler.writeBuffer.hasRemaining()) {
-                                sentMsgs.set(handler.userId, sentMsgs.get(handler.userId) + 1);
-                                //System.out.println("Canceling " + handler.userId);
-                                selectionKey.interestOps(0);
-                                //selectionKey.cancel();
-                                //System.out.println("Canceled " + handler.userId);
-                                //handler.resetWrite();
-                                //System.out.println("Wrote " + handler.userId);
-                            }
-
-                            iterator.remove();
-                        }
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                }
-            });
+            serverSocketChannel.bind(new InetSocketAddress(Constants.PORT), Math.max(50, config.numberOfClients));
+            markReady();
+            for (EventLoop loop : loops) {
+                loopPool.submit(loop);
+            }
 
             while (isWorking) {
                 SocketChannel channel = null;
@@ -154,117 +60,327 @@ public class NonBlockingServer extends AbstractServer {
                     break;
                 }
                 //System.out.println("Accepted client");
-                sentMsgs.add(0);
                 channel.configureBlocking(false);
-                ClientHandler handler = new ClientHandler(channel);
+                ClientHandler handler = new ClientHandler(channel, leastLoadedLoop());
                 clients.add(handler);
+                metrics.connectionOpened();
                 startLatch.countDown();
-                readQueue.offer(handler);
-                readSelector.wakeup(); // vibe check
+                handler.loop.addClient(handler);
             }
         }
     }
 
+    private EventLoop leastLoadedLoop() {
+        EventLoop best = loops[0];
+        for (EventLoop loop : loops) {
+            if (loop.connections.get() < best.connections.get()) {
+                best = loop;
+            }
+        }
+        return best;
+    }
+
     @Override
     public void stop() throws IOException {
         isWorking = false;
-        readSelector.close();
-        writeSelector.close();
-        readPool.shutdownNow();
-        writePool.shutdownNow();
+        // every loop closes its own selector, closing it here would race with the loop iterating its keys
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.selector.wakeup();
+            }
+        }
+        loopPool.shutdownNow();
+        // the loops release the buffers of open connections on the way out
+        try {
+            loopPool.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         workers.shutdownNow();
+        sortPool.shutdownNow();
+        metrics.unregister();
         for (ClientHandler handler : clients) {
             handler.channel.close();
         }
     }
 
-    @Override
-    public double getMeanTime() {
-        List<Long> results = clients.stream().flatMap(c -> c.results.stream()).collect(Collectors.toList());
-        return ((double) results.stream().reduce(0L, Long::sum)) / results.size();
-    }
+    // One selector thread that reads and writes every connection assigned to it.
+    // Workers put connections with new responses into writeReady, and at most one
+    // wakeup is outstanding until the loop has looked at that queue again.
+    private class EventLoop implements Runnable {
+        private static final int MAX_GATHERED_BUFFERS = 64;
+
+        private final Selector selector;
+        private final Queue<ClientHandler> newClients = new ConcurrentLinkedQueue<>();
+        private final Queue<ClientHandler> writeReady = new ConcurrentLinkedQueue<>();
+        private final Queue<ClientHandler> readResumed = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+        private final AtomicInteger connections = new AtomicInteger();
+        private final ByteBuffer[] gathered = new ByteBuffer[MAX_GATHERED_BUFFERS];
+
+        private EventLoop(Selector selector) {
+            this.selector = selector;
+        }
 
-    private static class ClientHandler {
-        private volatile boolean everStarted = false;
-        private final Queue<Message> messages = new ConcurrentLinkedQueue<>();
-        private int messageLen;
-        private int numberOfTasks;
-        private int tasksCompleted;
-        byte[] message = new byte[0];
-        public ByteBuffer readBuffer = ByteBuffer.allocate(1024);
-        public ByteBuffer writeBuffer;
-        public List<Integer> result;
-        public final SocketChannel channel;
-        private volatile int userId;
-        private volatile int taskId;
-        public final List<Long> results = new CopyOnWriteArrayList<>();
+        public void addClient(ClientHandler handler) {
+            connections.incrementAndGet();
+            newClients.offer(handler);
+            wakeup();
+        }
 
-        private ClientHandler(SocketChannel channel) {
-            this.channel = channel;
+        public void addResult(ClientHandler handler, ArrayMessage message) {
+            handler.messages.offer(message);
+            if (handler.writeScheduled.compareAndSet(false, true)) {
+                writeReady.offer(handler);
+                wakeup();
+            }
         }
 
-        public void fillMessage() {
-            readBuffer.flip();
+        public void resumeRead(ClientHandler handler) {
+            readResumed.offer(handler);
+            wakeup();
+        }
 
-            if (numberOfTasks == 0) {
-                if (readBuffer.remaining() >= 4) {
-                    numberOfTasks = readBuffer.getInt();
-                } else {
-                    readBuffer.flip();
-                    return;
+        private void wakeup() {
+            if (wakeupPending.compareAndSet(false, true)) {
+                metrics.selectorWakeup();
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (isWorking) {
+                try {
+                    int selected = selector.select(1000);
+                    wakeupPending.set(false);
+
+                    while (!newClients.isEmpty()) {
+                        ClientHandler handler = newClients.poll();
+                        if (handler == null) {
+                            break;
+                        }
+                        handler.key = handler.channel.register(selector, SelectionKey.OP_READ, handler);
+                    }
+
+                    while (!writeReady.isEmpty()) {
+                        ClientHandler handler = writeReady.poll();
+                        if (handler == null) {
+                            break;
+                        }
+                        handler.writeScheduled.set(false);
+                        handler.encodeResponses();
+                        if (handler.key.isValid()) {
+                            write(handler);
+                        }
+                    }
+
+                    while (!readResumed.isEmpty()) {
+                        ClientHandler handler = readResumed.poll();
+                        if (handler == null) {
+                            break;
+                        }
+                        if (handler.key.isValid() && handler.parked != null) {
+                            drain(handler);
+                        }
+                    }
+
+                    if (selected == 0) {
+                        metrics.zeroSelect();
+                        continue;
+                    }
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey selectionKey = iterator.next();
+                        iterator.remove();
+                        ClientHandler handler = (ClientHandler) selectionKey.attachment();
+
+                        if (selectionKey.isValid() && selectionKey.isReadable()) {
+                            read(handler);
+                        }
+                        if (selectionKey.isValid() && selectionKey.isWritable()) {
+                            write(handler);
+                        }
+                    }
+                } catch (ClosedSelectorException ignore) {
+                    break;
+                } catch (IOException ignore) {
+                }
+            }
+            // the server is stopping, buffers of connections still open go back to the pool
+            for (ClientHandler handler : clients) {
+                if (handler.loop == this) {
+                    handler.release();
                 }
             }
+            try {
+                selector.close();
+            } catch (IOException ignore) {
+            }
+        }
 
-            if (messageLen == 0) {
-                if (readBuffer.remaining() >= 4) {
-                    messageLen = readBuffer.getInt();
-                } else {
-                    readBuffer.compact();
+        private void read(ClientHandler handler) throws IOException {
+            if (handler.isFinished()) {
+                finish(handler);
+                return;
+            }
+            int bytes = handler.channel.read(handler.decoder.getReadTarget());
+            if (bytes < 0) {
+                finish(handler);
+                return;
+            }
+            metrics.bytesRead(bytes);
+            drain(handler);
+        }
+
+        // stops reading the connection while its request would exceed an in-flight limit
+        private void drain(ClientHandler handler) throws IOException {
+            while (true) {
+                ArrayMessage message = handler.parked;
+                if (message == null) {
+                    try {
+                        message = handler.nextMessage();
+                    } catch (IOException e) {
+                        // a malformed frame leaves the stream unsynchronized, so the connection is dropped
+                        handler.channel.close();
+                        finish(handler);
+                        return;
+                    }
+                    if (message == null) {
+                        break;
+                    }
+                    traceMessage(message, handler.frameReceived);
+                }
+                if (!limiter.tryAcquire(handler.inFlight)) {
+                    if (handler.parked == null) {
+                        handler.parked = message;
+                        handler.throttledSince = System.nanoTime();
+                    }
+                    updateInterest(handler);
+                    limiter.park(handler.inFlight, () -> resumeRead(handler));
                     return;
                 }
+                if (handler.parked != null) {
+                    limiter.throttled(System.nanoTime() - handler.throttledSince);
+                    handler.parked = null;
+                }
+                ArrayMessage request = message;
+                dispatch(request.totalLength(), () -> {
+                    processMessage(request);
+                    addResult(handler, request);
+                });
             }
-            int readyToRead = readBuffer.remaining();
-            int willRead = min(readyToRead, messageLen - message.length);
-            byte[] tmp = new byte[willRead];
-            readBuffer.get(tmp, 0, willRead);
-            message = ArrayUtils.addAll(message, tmp);
-            readBuffer.compact();
+            updateInterest(handler);
         }
 
-        public boolean isMessageCollected() {
-            return messageLen > 0 && message.length == messageLen;
+        private void write(ClientHandler handler) throws IOException {
+            while (!handler.pendingWrites.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer buffer : handler.pendingWrites) {
+                    if (count == MAX_GATHERED_BUFFERS) {
+                        break;
+                    }
+                    gathered[count++] = buffer;
+                }
+                metrics.bytesWritten(handler.channel.write(gathered, 0, count));
+                boolean socketFull = gathered[count - 1].hasRemaining();
+                Arrays.fill(gathered, 0, count, null);
+                while (!handler.pendingWrites.isEmpty() && !handler.pendingWrites.peek().hasRemaining()) {
+                    BufferPool.SHARED.release(handler.pendingWrites.poll());
+                    limiter.release(handler.inFlight);
+                    finishTrace(handler.pendingTraces.poll());
+                }
+                if (socketFull) {
+                    break;
+                }
+            }
+            updateInterest(handler);
         }
 
-        public Message getMessage() throws InvalidProtocolBufferException {
-            if (!isMessageCollected()) {
-                return null;
+        private void updateInterest(ClientHandler handler) {
+            int ops = (handler.parked == null ? SelectionKey.OP_READ : 0)
+                    | (handler.pendingWrites.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+            if (handler.key.isValid() && handler.key.interestOps() != ops) {
+                handler.key.interestOps(ops);
             }
-            Message msg = Message.parseFrom(message);
-            userId = msg.getClientId();
-            taskId = msg.getTaskId();
-            return msg;
         }
 
-        public void makeWriteBuffer(Message msg) {
-            byte[] response = msg.toByteArray();
-            writeBuffer = ByteBuffer.allocate(4 + response.length);
-            writeBuffer.putInt(response.length);
-            writeBuffer.put(response);
-            writeBuffer.flip();
+        private void finish(ClientHandler handler) {
+            handler.key.cancel();
+            handler.release();
+            connections.decrementAndGet();
+            metrics.connectionClosed();
+        }
+    }
+
+    private static class ClientHandler {
+        private final Queue<ArrayMessage> messages = new ConcurrentLinkedQueue<>();
+        private final Queue<int[]> spareArrays = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+        private int tasksEncoded;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private ArrayMessage parked;
+        private long throttledSince;
+        private long frameReceived;
+        // traces of the frames in pendingWrites when stages are traced
+        private final ArrayDeque<RequestTrace> pendingTraces = new ArrayDeque<>();
+        private boolean released;
+        public final FrameDecoder decoder = new FrameDecoder(BufferPool.SHARED);
+        public final SocketChannel channel;
+        public final EventLoop loop;
+        public SelectionKey key;
+
+        private ClientHandler(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        public ArrayMessage nextMessage() throws IOException {
+            ByteBuffer body = decoder.nextFrame();
+            if (body == null) {
+                return null;
+            }
+            frameReceived = System.nanoTime();
+            return decoder.getCodec().decode(body, spareArrays.poll());
         }
 
-        public void resetRead() {
-            messageLen = 0;
-            message = new byte[0];
+        // called on the loop thread once the connection is done, responses that were not written are dropped
+        public void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            decoder.release();
+            ByteBuffer buffer;
+            while ((buffer = pendingWrites.poll()) != null) {
+                BufferPool.SHARED.release(buffer);
+            }
+            pendingTraces.clear();
         }
 
-        public void resetWrite() {
-            result = null;
-            tasksCompleted++;
+        public void encodeResponses() throws IOException {
+            while (true) {
+                ArrayMessage message = messages.poll();
+                if (message == null) {
+                    return;
+                }
+                if (released) {
+                    // workers still finish the tasks of a connection that was closed early
+                    continue;
+                }
+                pendingWrites.offer(decoder.getCodec().encodeFrame(message, BufferPool.SHARED));
+                if (message.trace != null) {
+                    message.trace.encoded = System.nanoTime();
+                    pendingTraces.offer(message.trace);
+                }
+                spareArrays.offer(message.array);
+                tasksEncoded += message.taskCount();
+            }
         }
 
         public boolean isFinished() {
-            return numberOfTasks > 0 && tasksCompleted == numberOfTasks;
+            return decoder.isHandshakeDone() && tasksEncoded == decoder.getNumberOfTasks() && pendingWrites.isEmpty();
         }
     }
 }
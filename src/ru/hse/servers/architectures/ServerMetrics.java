@@ -0,0 +1,196 @@
+package ru.hse.servers.architectures;
+
+import ru.hse.servers.LatencyHistogram;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Live counters of one server, registered as ru.hse.servers:type=Server,name=<architecture> while it runs.
+// Request rate and latency percentiles cover the last WINDOW_SLOTS seconds.
+public class ServerMetrics implements ServerMetricsMBean {
+    private static final int WINDOW_SLOTS = 10;
+    private static final long SLOT_NANOS = 1_000_000_000L;
+
+    private final AbstractServer server;
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder selectorWakeups = new LongAdder();
+    private final LongAdder zeroSelects = new LongAdder();
+    private final LongAdder completionFailures = new LongAdder();
+    private final LatencyHistogram[] slots = new LatencyHistogram[WINDOW_SLOTS];
+    private final AtomicLongArray slotEpochs = new AtomicLongArray(WINDOW_SLOTS);
+    private ObjectName registeredName;
+
+    public ServerMetrics(AbstractServer server) {
+        this.server = server;
+        for (int i = 0; i < WINDOW_SLOTS; i++) {
+            slots[i] = new LatencyHistogram();
+            slotEpochs.set(i, Long.MIN_VALUE);
+        }
+    }
+
+    // a new server of the same architecture replaces the previous one
+    public synchronized void register() {
+        try {
+            MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("ru.hse.servers:type=Server,name=" + getArchitecture());
+            if (beans.isRegistered(name)) {
+                beans.unregisterMBean(name);
+            }
+            beans.registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException e) {
+            System.out.println("Failed to register server metrics: " + e.getMessage());
+        }
+    }
+
+    public synchronized void unregister() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (JMException e) {
+            System.out.println("Failed to unregister server metrics: " + e.getMessage());
+        }
+        registeredName = null;
+    }
+
+    public void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    public void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    public void requestProcessed(long nanos) {
+        requests.increment();
+        long epoch = Math.floorDiv(System.nanoTime(), SLOT_NANOS);
+        int index = (int) Math.floorMod(epoch, (long) WINDOW_SLOTS);
+        long seen = slotEpochs.get(index);
+        if (seen != epoch && slotEpochs.compareAndSet(index, seen, epoch)) {
+            slots[index].reset();
+        }
+        slots[index].record(nanos);
+    }
+
+    public void bytesRead(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void bytesWritten(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    public void selectorWakeup() {
+        selectorWakeups.increment();
+    }
+
+    public void zeroSelect() {
+        zeroSelects.increment();
+    }
+
+    public void completionFailed() {
+        completionFailures.increment();
+    }
+
+    private LatencyHistogram window() {
+        long epoch = Math.floorDiv(System.nanoTime(), SLOT_NANOS);
+        LatencyHistogram window = new LatencyHistogram();
+        for (int i = 0; i < WINDOW_SLOTS; i++) {
+            long slotEpoch = slotEpochs.get(i);
+            if (slotEpoch > epoch - WINDOW_SLOTS && slotEpoch <= epoch) {
+                window.add(slots[i]);
+            }
+        }
+        return window;
+    }
+
+    @Override
+    public String getArchitecture() {
+        return server.config.architectureType.toString();
+    }
+
+    @Override
+    public long getOpenConnections() {
+        return connectionsOpened.sum() - connectionsClosed.sum();
+    }
+
+    @Override
+    public long getTotalRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public double getRequestsPerSecond() {
+        return (double) window().getCount() / WINDOW_SLOTS;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return server.getQueueDepth();
+    }
+
+    @Override
+    public int getActiveWorkers() {
+        return server.getActiveWorkers();
+    }
+
+    @Override
+    public int getInFlight() {
+        return server.getInFlight();
+    }
+
+    @Override
+    public double getLatencyP50Millis() {
+        return window().getPercentile(50) / 1e6;
+    }
+
+    @Override
+    public double getLatencyP99Millis() {
+        return window().getPercentile(99) / 1e6;
+    }
+
+    @Override
+    public double getLatencyP999Millis() {
+        return window().getPercentile(99.9) / 1e6;
+    }
+
+    @Override
+    public double getLatencyMaxMillis() {
+        return window().getMax() / 1e6;
+    }
+
+    @Override
+    public long getSelectorWakeups() {
+        return selectorWakeups.sum();
+    }
+
+    @Override
+    public long getZeroSelects() {
+        return zeroSelects.sum();
+    }
+
+    @Override
+    public long getCompletionFailures() {
+        return completionFailures.sum();
+    }
+}
@@ -0,0 +1,35 @@
+package ru.hse.servers.architectures;
+
+public interface ServerMetricsMBean {
+    String getArchitecture();
+
+    long getOpenConnections();
+
+    long getTotalRequests();
+
+    double getRequestsPerSecond();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    int getQueueDepth();
+
+    int getActiveWorkers();
+
+    int getInFlight();
+
+    double getLatencyP50Millis();
+
+    double getLatencyP99Millis();
+
+    double getLatencyP999Millis();
+
+    double getLatencyMaxMillis();
+
+    long getSelectorWakeups();
+
+    long getZeroSelects();
+
+    long getCompletionFailures();
+}
@@ -0,0 +1,20 @@
+package ru.hse.servers.architectures;
+
+import ru.hse.servers.TestConfig;
+
+import java.util.concurrent.CountDownLatch;
+
+public class Servers {
+    public static AbstractServer create(TestConfig config, CountDownLatch startLatch) {
+        switch (config.architectureType) {
+            case BLOCKING:
+                return new BlockingServer(config, startLatch);
+            case NON_BLOCKING:
+                return new NonBlockingServer(config, startLatch);
+            case VIRTUAL_THREADS:
+                return new VirtualThreadServer(config, startLatch);
+            default:
+                return new AsynchronousServer(config, startLatch);
+        }
+    }
+}
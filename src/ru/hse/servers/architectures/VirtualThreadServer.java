@@ -0,0 +1,167 @@
+package ru.hse.servers.architectures;
+
+import ru.hse.servers.Constants;
+import ru.hse.servers.TestConfig;
+import ru.hse.servers.Utils;
+import ru.hse.servers.protocol.ArrayMessage;
+import ru.hse.servers.protocol.FrameCodec;
+import ru.hse.servers.protocol.FrameReader;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Same structure as BlockingServer, but every connection, read loop and sort gets its own virtual thread
+public class VirtualThreadServer extends AbstractServer {
+    private ServerSocket serverSocket;
+    private final ExecutorService threads = Utils.newVirtualThreadExecutor();
+    private volatile boolean isWorking = true;
+    private final List<ClientHandler> clients = new CopyOnWriteArrayList<>();
+    private final CountDownLatch startLatch;
+
+    public VirtualThreadServer(TestConfig config, CountDownLatch startLatch) {
+        super(config);
+        this.startLatch = startLatch;
+    }
+
+    @Override
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(Constants.PORT, Math.max(50, config.numberOfClients));
+        markReady();
+        threads.submit(() -> acceptClients(serverSocket));
+    }
+
+    private void acceptClients(ServerSocket socket) {
+        try {
+            while (isWorking) {
+                try {
+                    Socket clientSocket = socket.accept();
+                    ClientHandler handler = new ClientHandler(clientSocket);
+                    clients.add(handler);
+                    metrics.connectionOpened();
+                    startLatch.countDown();
+                    threads.submit(handler::processClient);
+                } catch (SocketException ignore) {
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void stop() throws IOException {
+        isWorking = false;
+        serverSocket.close();
+        threads.shutdownNow();
+        workers.shutdown();
+        sortPool.shutdownNow();
+        metrics.unregister();
+        for (ClientHandler client : clients) {
+            client.stop();
+        }
+    }
+
+    private class ClientHandler {
+        private final Socket socket;
+        private final FrameReader inputStream;
+        private final DataOutputStream outputStream;
+        // a lock rather than synchronized, so a blocked writer does not pin its carrier thread
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private volatile FrameCodec codec;
+
+        private final Queue<int[]> spareArrays = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        // guarded by writeLock
+        private int written;
+
+        public ClientHandler(Socket socket) throws IOException {
+            this.socket = socket;
+            inputStream = new FrameReader(socket.getInputStream());
+            outputStream = new DataOutputStream(socket.getOutputStream());
+        }
+
+        private void sendData(ArrayMessage data) {
+            writeLock.lock();
+            try {
+                metrics.bytesWritten(Utils.writeArrayMessage(outputStream, data, codec));
+                limiter.release(inFlight);
+                finishTrace(data.trace);
+                spareArrays.offer(data.array);
+                written += data.taskCount();
+                if (written == inputStream.getNumberOfTasks()) {
+                    connectionClosed();
+                }
+            } catch (SocketException ignore) {
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        public void processClient() {
+            try {
+                codec = inputStream.readHandshake().codec;
+                int numberOfQueries = inputStream.getNumberOfTasks();
+                int received = 0;
+                while (received < numberOfQueries) {
+                    limiter.acquire(inFlight);
+                    ArrayMessage msg = inputStream.readMessage(codec, spareArrays.poll());
+                    traceMessage(msg, inputStream.getFrameStart());
+                    metrics.bytesRead(inputStream.getFrameSize());
+                    received += msg.taskCount();
+                    dispatch(msg.totalLength(), () -> {
+                        processMessage(msg);
+                        sendData(msg);
+                    }, threads);
+                }
+            } catch (SocketException | EOFException | InterruptedException ignore) {
+            } catch (IOException e) {
+                // a malformed handshake or frame, the connection can not be read any further
+                e.printStackTrace();
+                closeSocket();
+                connectionClosed();
+            }
+        }
+
+        public void stop() {
+            closeSocket();
+            connectionClosed();
+        }
+
+        // the last response, a failed reader and stop may all end the connection, it is counted once
+        private void connectionClosed() {
+            if (closed.compareAndSet(false, true)) {
+                metrics.connectionClosed();
+            }
+        }
+
+        private void closeSocket() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
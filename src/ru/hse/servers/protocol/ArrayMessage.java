@@ -0,0 +1,37 @@
+package ru.hse.servers.protocol;
+
+import ru.hse.servers.RequestTrace;
+
+public class ArrayMessage {
+    public int clientId;
+    public int taskId;
+    public int[] array;
+    public int length;
+    // the rest of the tasks that travel in the same batch frame
+    public ArrayMessage next;
+    // stage timestamps of the frame, kept on its first task when the server traces stages
+    public RequestTrace trace;
+
+    public ArrayMessage(int clientId, int taskId, int[] array, int length) {
+        this.clientId = clientId;
+        this.taskId = taskId;
+        this.array = array;
+        this.length = length;
+    }
+
+    public int taskCount() {
+        int count = 0;
+        for (ArrayMessage entry = this; entry != null; entry = entry.next) {
+            count++;
+        }
+        return count;
+    }
+
+    public int totalLength() {
+        int total = 0;
+        for (ArrayMessage entry = this; entry != null; entry = entry.next) {
+            total += entry.length;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,164 @@
+package ru.hse.servers.protocol;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// kind, clientId, taskId and element count, followed by the elements, all little-endian int32.
+// A batch frame has kind, clientId, entry count and total element count in its header,
+// and every entry is its taskId and element count followed by the elements.
+public class FixedWidthFrameCodec implements FrameCodec {
+    public static final int KIND_SINGLE = 1;
+    public static final int KIND_BATCH = 2;
+    public static final int HEADER_SIZE = 16;
+    public static final int ENTRY_HEADER_SIZE = 8;
+
+    @Override
+    public ArrayMessage decode(ByteBuffer body, int[] reuse) throws IOException {
+        ByteOrder order = body.order();
+        body.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (body.remaining() < HEADER_SIZE) {
+                throw new InvalidProtocolBufferException("Frame is shorter than its header");
+            }
+            int kind = body.getInt();
+            int clientId = body.getInt();
+            int third = body.getInt();
+            int count = body.getInt();
+            if (kind == KIND_BATCH) {
+                checkBatchSize(body.remaining(), third, count);
+                ArrayMessage first = null;
+                ArrayMessage last = null;
+                for (int i = 0; i < third; i++) {
+                    int taskId = body.getInt();
+                    int length = body.getInt();
+                    if (length < 0 || body.remaining() < 4 * length) {
+                        throw new InvalidProtocolBufferException("Batch entry length does not fit the frame " + length);
+                    }
+                    int[] array = i == 0 && reuse != null && reuse.length >= length ? reuse : new int[length];
+                    body.asIntBuffer().get(array, 0, length);
+                    body.position(body.position() + 4 * length);
+                    ArrayMessage entry = new ArrayMessage(clientId, taskId, array, length);
+                    if (first == null) {
+                        first = entry;
+                    } else {
+                        last.next = entry;
+                    }
+                    last = entry;
+                }
+                return first;
+            }
+            if (kind != KIND_SINGLE) {
+                throw new InvalidProtocolBufferException("Unknown frame kind " + kind);
+            }
+            if (count < 0 || body.remaining() != 4 * count) {
+                throw new InvalidProtocolBufferException("Frame length does not match element count " + count);
+            }
+            int[] array = reuse != null && reuse.length >= count ? reuse : new int[count];
+            body.asIntBuffer().get(array, 0, count);
+            body.position(body.limit());
+            return new ArrayMessage(clientId, third, array, count);
+        } finally {
+            body.order(order);
+        }
+    }
+
+    @Override
+    public ArrayMessage decode(CodedInputStream input, int bodySize, int[] reuse) throws IOException {
+        if (bodySize < HEADER_SIZE) {
+            throw new InvalidProtocolBufferException("Frame is shorter than its header");
+        }
+        int kind = input.readRawLittleEndian32();
+        int clientId = input.readRawLittleEndian32();
+        int third = input.readRawLittleEndian32();
+        int count = input.readRawLittleEndian32();
+        if (kind == KIND_BATCH) {
+            checkBatchSize(bodySize - HEADER_SIZE, third, count);
+            ArrayMessage first = null;
+            ArrayMessage last = null;
+            int elementsLeft = count;
+            for (int i = 0; i < third; i++) {
+                int taskId = input.readRawLittleEndian32();
+                int length = input.readRawLittleEndian32();
+                if (length < 0 || length > elementsLeft) {
+                    throw new InvalidProtocolBufferException("Batch entry length does not fit the frame " + length);
+                }
+                elementsLeft -= length;
+                int[] array = i == 0 && reuse != null && reuse.length >= length ? reuse : new int[length];
+                for (int j = 0; j < length; j++) {
+                    array[j] = input.readRawLittleEndian32();
+                }
+                ArrayMessage entry = new ArrayMessage(clientId, taskId, array, length);
+                if (first == null) {
+                    first = entry;
+                } else {
+                    last.next = entry;
+                }
+                last = entry;
+            }
+            return first;
+        }
+        if (kind != KIND_SINGLE) {
+            throw new InvalidProtocolBufferException("Unknown frame kind " + kind);
+        }
+        if (count < 0 || bodySize - HEADER_SIZE != 4 * count) {
+            throw new InvalidProtocolBufferException("Frame length does not match element count " + count);
+        }
+        int[] array = reuse != null && reuse.length >= count ? reuse : new int[count];
+        for (int i = 0; i < count; i++) {
+            array[i] = input.readRawLittleEndian32();
+        }
+        return new ArrayMessage(clientId, third, array, count);
+    }
+
+    private static void checkBatchSize(int remaining, int entries, int elements) throws InvalidProtocolBufferException {
+        if (entries <= 0 || elements < 0 || (long) remaining != (long) ENTRY_HEADER_SIZE * entries + 4L * elements) {
+            throw new InvalidProtocolBufferException("Batch frame length does not match " + entries + " entries of " + elements + " elements");
+        }
+    }
+
+    @Override
+    public int bodySize(ArrayMessage message) {
+        if (message.next == null) {
+            return HEADER_SIZE + 4 * message.length;
+        }
+        return HEADER_SIZE + ENTRY_HEADER_SIZE * message.taskCount() + 4 * message.totalLength();
+    }
+
+    @Override
+    public void encode(ArrayMessage message, ByteBuffer target) {
+        ByteOrder order = target.order();
+        target.order(ByteOrder.LITTLE_ENDIAN);
+        if (message.next == null) {
+            target.putInt(KIND_SINGLE);
+            target.putInt(message.clientId);
+            target.putInt(message.taskId);
+            target.putInt(message.length);
+            putElements(message, target);
+        } else {
+            target.putInt(KIND_BATCH);
+            target.putInt(message.clientId);
+            target.putInt(message.taskCount());
+            target.putInt(message.totalLength());
+            for (ArrayMessage entry = message; entry != null; entry = entry.next) {
+                target.putInt(entry.taskId);
+                target.putInt(entry.length);
+                putElements(entry, target);
+            }
+        }
+        target.order(order);
+    }
+
+    private static void putElements(ArrayMessage message, ByteBuffer target) {
+        target.asIntBuffer().put(message.array, 0, message.length);
+        target.position(target.position() + 4 * message.length);
+    }
+
+    @Override
+    public boolean supportsBatches() {
+        return true;
+    }
+}
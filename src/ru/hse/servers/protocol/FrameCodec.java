@@ -0,0 +1,42 @@
+package ru.hse.servers.protocol;
+
+import com.google.protobuf.CodedInputStream;
+import ru.hse.servers.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface FrameCodec {
+    // reuse holds the first task when it is large enough, further tasks of a batch get new arrays
+    ArrayMessage decode(ByteBuffer body, int[] reuse) throws IOException;
+
+    ArrayMessage decode(CodedInputStream input, int bodySize, int[] reuse) throws IOException;
+
+    int bodySize(ArrayMessage message);
+
+    void encode(ArrayMessage message, ByteBuffer target) throws IOException;
+
+    default boolean supportsBatches() {
+        return false;
+    }
+
+    default ByteBuffer encodeFrame(ArrayMessage message) throws IOException {
+        return encodeFrame(message, null);
+    }
+
+    default ByteBuffer encodeFrame(ArrayMessage message, BufferPool pool) throws IOException {
+        int size = bodySize(message);
+        ByteBuffer buffer = pool == null ? ByteBuffer.allocate(4 + size) : pool.acquire(4 + size);
+        try {
+            buffer.putInt(size);
+            encode(message, buffer);
+        } catch (IOException | RuntimeException e) {
+            if (pool != null) {
+                pool.release(buffer);
+            }
+            throw e;
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
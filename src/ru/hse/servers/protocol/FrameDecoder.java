@@ -0,0 +1,141 @@
+package ru.hse.servers.protocol;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import ru.hse.servers.BufferPool;
+import ru.hse.servers.Constants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+// Collects length-prefixed frames of one connection. The handshake is consumed first,
+// then every body is collected into a buffer sized once from its length prefix.
+// A body returned by nextFrame is valid until the next call. Buffers come from the pool
+// and go back to it in release. A malformed handshake or a length prefix out of range fails the connection.
+public class FrameDecoder {
+    private static final int INITIAL_READ_BUFFER_SIZE = 1024;
+    private static final int MAX_READ_BUFFER_SIZE = 64 * 1024;
+
+    private final BufferPool pool;
+    private ByteBuffer readBuffer;
+    private ByteBuffer frameStorage;
+    private ByteBuffer frame;
+    private ProtocolVersion version;
+    private int numberOfTasks;
+
+    public FrameDecoder(BufferPool pool) {
+        this.pool = pool;
+        readBuffer = pool.acquire(INITIAL_READ_BUFFER_SIZE);
+    }
+
+    // Large bodies are read straight into the frame buffer when nothing else is pending
+    public ByteBuffer getReadTarget() {
+        if (frame != null && frame.hasRemaining() && readBuffer.position() == 0) {
+            return frame;
+        }
+        return readBuffer;
+    }
+
+    public ByteBuffer nextFrame() throws IOException {
+        if (frame != null && !frame.hasRemaining()) {
+            return completeFrame();
+        }
+        int nextFrameSize = 0;
+        readBuffer.flip();
+        try {
+            if (version == null && !readHandshake()) {
+                return null;
+            }
+            if (frame == null) {
+                if (readBuffer.remaining() < 4) {
+                    return null;
+                }
+                int size = readBuffer.getInt();
+                if (size < 0 || size > Constants.MAX_FRAME_SIZE) {
+                    throw new InvalidProtocolBufferException("Frame size " + size + " is out of range");
+                }
+                nextFrameSize = size;
+                startFrame(nextFrameSize);
+            }
+            int willRead = min(readBuffer.remaining(), frame.remaining());
+            ByteBuffer chunk = readBuffer.duplicate();
+            chunk.limit(chunk.position() + willRead);
+            frame.put(chunk);
+            readBuffer.position(readBuffer.position() + willRead);
+            if (!frame.hasRemaining()) {
+                return completeFrame();
+            }
+            return null;
+        } finally {
+            readBuffer.compact();
+            if (nextFrameSize + 4 > readBuffer.capacity() && readBuffer.capacity() < MAX_READ_BUFFER_SIZE) {
+                growReadBuffer(min(MAX_READ_BUFFER_SIZE, max(2 * readBuffer.capacity(), nextFrameSize + 4)));
+            }
+        }
+    }
+
+    public void release() {
+        pool.release(readBuffer);
+        pool.release(frameStorage);
+        readBuffer = null;
+        frameStorage = null;
+        frame = null;
+    }
+
+    public boolean isHandshakeDone() {
+        return version != null;
+    }
+
+    public int getNumberOfTasks() {
+        return numberOfTasks;
+    }
+
+    public FrameCodec getCodec() {
+        return version.codec;
+    }
+
+    private boolean readHandshake() throws IOException {
+        if (readBuffer.remaining() < 4) {
+            return false;
+        }
+        ProtocolVersion handshakeVersion = ProtocolVersion.fromHandshake(readBuffer.getInt(readBuffer.position()));
+        if (readBuffer.remaining() < handshakeVersion.handshakeSize()) {
+            return false;
+        }
+        if (handshakeVersion != ProtocolVersion.V1) {
+            readBuffer.getInt();
+        }
+        int tasks = readBuffer.getInt();
+        if (tasks < 0) {
+            throw new InvalidProtocolBufferException("Number of tasks " + tasks + " is out of range");
+        }
+        numberOfTasks = tasks;
+        version = handshakeVersion;
+        return true;
+    }
+
+    private void startFrame(int size) {
+        if (frameStorage == null || frameStorage.capacity() < size) {
+            pool.release(frameStorage);
+            frameStorage = pool.acquire(size);
+        }
+        frame = frameStorage;
+        frame.clear().limit(size);
+    }
+
+    private ByteBuffer completeFrame() {
+        ByteBuffer completed = frame;
+        frame = null;
+        return completed.flip();
+    }
+
+    private void growReadBuffer(int capacity) {
+        ByteBuffer grown = pool.acquire(capacity);
+        readBuffer.flip();
+        grown.put(readBuffer);
+        pool.release(readBuffer);
+        readBuffer = grown;
+    }
+}
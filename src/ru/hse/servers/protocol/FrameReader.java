@@ -0,0 +1,74 @@
+package ru.hse.servers.protocol;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import ru.hse.servers.Constants;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Reads length-prefixed frames from a blocking stream through one reused CodedInputStream buffer
+public class FrameReader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final CodedInputStream input;
+    private long frameStart;
+    private int frameSize;
+    private int numberOfTasks;
+
+    public FrameReader(InputStream stream) {
+        this(stream, BUFFER_SIZE);
+    }
+
+    public FrameReader(InputStream stream, int bufferSize) {
+        input = CodedInputStream.newInstance(stream, bufferSize);
+        input.setSizeLimit(Constants.MAX_FRAME_SIZE + 4);
+    }
+
+    public int readInt() throws IOException {
+        if (input.isAtEnd()) {
+            throw new EOFException();
+        }
+        return Integer.reverseBytes(input.readRawLittleEndian32());
+    }
+
+    // returns the version the client asked for, the number of tasks it announced is getNumberOfTasks()
+    public ProtocolVersion readHandshake() throws IOException {
+        int header = readInt();
+        ProtocolVersion version = ProtocolVersion.fromHandshake(header);
+        numberOfTasks = version == ProtocolVersion.V1 ? header : readInt();
+        if (numberOfTasks < 0) {
+            throw new InvalidProtocolBufferException("Number of tasks " + numberOfTasks + " is out of range");
+        }
+        return version;
+    }
+
+    public ArrayMessage readMessage(FrameCodec codec, int[] reuse) throws IOException {
+        input.resetSizeCounter();
+        int size = readInt();
+        if (size < 0 || size > Constants.MAX_FRAME_SIZE) {
+            throw new InvalidProtocolBufferException("Frame size " + size + " is out of range");
+        }
+        frameStart = System.nanoTime();
+        frameSize = 4 + size;
+        int oldLimit = input.pushLimit(size);
+        ArrayMessage message = codec.decode(input, size, reuse);
+        input.skipRawBytes(input.getBytesUntilLimit());
+        input.popLimit(oldLimit);
+        return message;
+    }
+
+    // when the length prefix of the last frame was read, the body is parsed as it arrives
+    public long getFrameStart() {
+        return frameStart;
+    }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    public int getNumberOfTasks() {
+        return numberOfTasks;
+    }
+}
@@ -0,0 +1,93 @@
+package ru.hse.servers.protocol;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import ru.hse.servers.protocol.message.Message;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// Reads and writes the same bytes as Message, but keeps the array as int[]
+public class MessageCodec {
+    private static final int WIRETYPE_VARINT = 0;
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+
+    private static final int CLIENT_ID_TAG = Message.CLIENTID_FIELD_NUMBER << 3 | WIRETYPE_VARINT;
+    private static final int TASK_ID_TAG = Message.TASKID_FIELD_NUMBER << 3 | WIRETYPE_VARINT;
+    private static final int ARRAY_TAG = Message.ARRAY_FIELD_NUMBER << 3 | WIRETYPE_VARINT;
+    private static final int ARRAY_PACKED_TAG = Message.ARRAY_FIELD_NUMBER << 3 | WIRETYPE_LENGTH_DELIMITED;
+
+    public static ArrayMessage decode(byte[] data, int offset, int length, int[] reuse) throws IOException {
+        return decode(CodedInputStream.newInstance(data, offset, length), length, reuse);
+    }
+
+    public static ArrayMessage decode(CodedInputStream input, int frameSize, int[] reuse) throws IOException {
+        int[] array = reuse != null ? reuse : new int[Math.max(16, frameSize / 3)];
+        int length = 0;
+        int clientId = 0;
+        int taskId = 0;
+        boolean hasClientId = false;
+        boolean hasTaskId = false;
+
+        boolean done = false;
+        while (!done) {
+            int tag = input.readTag();
+            switch (tag) {
+                case 0:
+                    done = true;
+                    break;
+                case CLIENT_ID_TAG:
+                    clientId = input.readInt32();
+                    hasClientId = true;
+                    break;
+                case TASK_ID_TAG:
+                    taskId = input.readInt32();
+                    hasTaskId = true;
+                    break;
+                case ARRAY_TAG:
+                    if (length == array.length) {
+                        array = Arrays.copyOf(array, 2 * array.length + 1);
+                    }
+                    array[length++] = input.readInt32();
+                    break;
+                case ARRAY_PACKED_TAG:
+                    int oldLimit = input.pushLimit(input.readRawVarint32());
+                    while (input.getBytesUntilLimit() > 0) {
+                        if (length == array.length) {
+                            array = Arrays.copyOf(array, 2 * array.length + 1);
+                        }
+                        array[length++] = input.readInt32();
+                    }
+                    input.popLimit(oldLimit);
+                    break;
+                default:
+                    if (!input.skipField(tag)) {
+                        done = true;
+                    }
+            }
+        }
+
+        if (!hasClientId || !hasTaskId) {
+            throw new InvalidProtocolBufferException("Message is missing required fields");
+        }
+        return new ArrayMessage(clientId, taskId, array, length);
+    }
+
+    public static int serializedSize(ArrayMessage message) {
+        int size = CodedOutputStream.computeInt32Size(Message.CLIENTID_FIELD_NUMBER, message.clientId)
+                + CodedOutputStream.computeInt32Size(Message.TASKID_FIELD_NUMBER, message.taskId);
+        for (int i = 0; i < message.length; i++) {
+            size += 1 + CodedOutputStream.computeInt32SizeNoTag(message.array[i]);
+        }
+        return size;
+    }
+
+    public static void encode(ArrayMessage message, CodedOutputStream output) throws IOException {
+        output.writeInt32(Message.CLIENTID_FIELD_NUMBER, message.clientId);
+        output.writeInt32(Message.TASKID_FIELD_NUMBER, message.taskId);
+        for (int i = 0; i < message.length; i++) {
+            output.writeInt32(Message.ARRAY_FIELD_NUMBER, message.array[i]);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package ru.hse.servers.protocol;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class ProtobufFrameCodec implements FrameCodec {
+    private final ThreadLocal<byte[]> directCopy = ThreadLocal.withInitial(() -> new byte[0]);
+
+    @Override
+    public ArrayMessage decode(ByteBuffer body, int[] reuse) throws IOException {
+        if (body.hasArray()) {
+            return MessageCodec.decode(CodedInputStream.newInstance(body), body.remaining(), reuse);
+        }
+        // CodedInputStream would copy a direct buffer into a new array anyway
+        int size = body.remaining();
+        byte[] data = directCopy.get();
+        if (data.length < size) {
+            data = new byte[size];
+            directCopy.set(data);
+        }
+        body.duplicate().get(data, 0, size);
+        return MessageCodec.decode(data, 0, size, reuse);
+    }
+
+    @Override
+    public ArrayMessage decode(CodedInputStream input, int bodySize, int[] reuse) throws IOException {
+        return MessageCodec.decode(input, bodySize, reuse);
+    }
+
+    @Override
+    public int bodySize(ArrayMessage message) {
+        return MessageCodec.serializedSize(message);
+    }
+
+    @Override
+    public void encode(ArrayMessage message, ByteBuffer target) throws IOException {
+        if (message.next != null) {
+            throw new IOException("Protocol version 1 cannot carry batch frames");
+        }
+        CodedOutputStream output = CodedOutputStream.newInstance(target);
+        MessageCodec.encode(message, output);
+        output.flush();
+    }
+}
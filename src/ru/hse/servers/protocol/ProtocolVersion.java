@@ -0,0 +1,46 @@
+package ru.hse.servers.protocol;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.nio.ByteBuffer;
+
+// Version 1 clients start with the number of tasks; newer clients send
+// the negated version number first and the number of tasks after it.
+// An unknown version fails like any other malformed input, so the connection is dropped.
+public enum ProtocolVersion {
+    V1(1, new ProtobufFrameCodec()),
+    V2(2, new FixedWidthFrameCodec());
+
+    public final int number;
+    public final FrameCodec codec;
+
+    ProtocolVersion(int number, FrameCodec codec) {
+        this.number = number;
+        this.codec = codec;
+    }
+
+    public static ProtocolVersion fromHandshake(int header) throws InvalidProtocolBufferException {
+        if (header >= 0) {
+            return V1;
+        }
+        for (ProtocolVersion version : values()) {
+            if (version.number == -header) {
+                return version;
+            }
+        }
+        throw new InvalidProtocolBufferException("Unsupported protocol version " + -header);
+    }
+
+    public int handshakeSize() {
+        return this == V1 ? 4 : 8;
+    }
+
+    public ByteBuffer makeHandshake(int numberOfTasks) {
+        ByteBuffer buffer = ByteBuffer.allocate(handshakeSize());
+        if (this != V1) {
+            buffer.putInt(-number);
+        }
+        buffer.putInt(numberOfTasks);
+        return buffer.flip();
+    }
+}
@@ -0,0 +1,67 @@
+package ru.hse.servers.sort;
+
+public class AdaptiveSortEngine implements SortEngine {
+    private static final int INSERTION_SORT_MAX_LENGTH = 32;
+    private static final int PRESORTED_INSERTION_SORT_MAX_LENGTH = 2048;
+    private static final int RADIX_SORT_MIN_LENGTH = 512;
+    private static final int COUNTING_SORT_MIN_LENGTH = 8192;
+    private static final int SAMPLES = 32;
+
+    private final SortEngine insertionSort = new InsertionSortEngine();
+    private final SortEngine quickSort = new DualPivotQuickSortEngine();
+    private final SortEngine radixSort = new RadixSortEngine();
+    private final SortEngine countingSort = new CountingSortEngine();
+
+    @Override
+    public void sort(int[] array, int from, int to) {
+        choose(array, from, to).sort(array, from, to);
+    }
+
+    public SortEngine choose(int[] array, int from, int to) {
+        int length = to - from;
+        if (length <= INSERTION_SORT_MAX_LENGTH) {
+            return insertionSort;
+        }
+        int descents = countSampledDescents(array, from, to);
+        if (descents == 0 && length <= PRESORTED_INSERTION_SORT_MAX_LENGTH) {
+            return insertionSort;
+        }
+        if (descents <= SAMPLES / 8) {
+            // quicksort finds and merges the existing runs
+            return quickSort;
+        }
+        if (length >= COUNTING_SORT_MIN_LENGTH) {
+            return countingSort;
+        }
+        if (length >= RADIX_SORT_MIN_LENGTH) {
+            return radixSort;
+        }
+        return quickSort;
+    }
+
+    private static int countSampledDescents(int[] array, int from, int to) {
+        int stride = Math.max(1, (to - from - 1) / SAMPLES);
+        int descents = 0;
+        for (int i = from; i + 1 < to; i += stride) {
+            if (array[i] > array[i + 1]) {
+                descents++;
+            }
+        }
+        return descents;
+    }
+
+    @Override
+    public double estimateCost(int length) {
+        // the presortedness sample is not known before the request arrives, assume random input
+        if (length <= INSERTION_SORT_MAX_LENGTH) {
+            return insertionSort.estimateCost(length);
+        }
+        if (length >= COUNTING_SORT_MIN_LENGTH) {
+            return countingSort.estimateCost(length);
+        }
+        if (length >= RADIX_SORT_MIN_LENGTH) {
+            return radixSort.estimateCost(length);
+        }
+        return quickSort.estimateCost(length);
+    }
+}
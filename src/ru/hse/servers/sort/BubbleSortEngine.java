@@ -0,0 +1,21 @@
+package ru.hse.servers.sort;
+
+public class BubbleSortEngine implements SortEngine {
+    @Override
+    public void sort(int[] array, int from, int to) {
+        for (int i = from; i < to - 1; i++) {
+            for (int j = from; j < to - (i - from) - 1; j++) {
+                if (array[j] > array[j + 1]) {
+                    int tmp = array[j];
+                    array[j] = array[j + 1];
+                    array[j + 1] = tmp;
+                }
+            }
+        }
+    }
+
+    @Override
+    public double estimateCost(int length) {
+        return (double) length * length / 2;
+    }
+}
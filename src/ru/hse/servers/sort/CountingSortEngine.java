@@ -0,0 +1,43 @@
+package ru.hse.servers.sort;
+
+import ru.hse.servers.Constants;
+
+public class CountingSortEngine implements SortEngine {
+    private static final int RANGE = 2 * Constants.ARRAY_VALUES_ABS_MAX + 1;
+
+    private final ThreadLocal<int[]> counts = ThreadLocal.withInitial(() -> new int[RANGE]);
+    private final SortEngine fallback = new DualPivotQuickSortEngine();
+
+    @Override
+    public void sort(int[] array, int from, int to) {
+        int[] count = counts.get();
+        for (int i = from; i < to; i++) {
+            int index = array[i] + Constants.ARRAY_VALUES_ABS_MAX;
+            if (index < 0 || index >= RANGE) {
+                for (int j = from; j < i; j++) {
+                    count[array[j] + Constants.ARRAY_VALUES_ABS_MAX] = 0;
+                }
+                fallback.sort(array, from, to);
+                return;
+            }
+            count[index]++;
+        }
+        int position = from;
+        for (int index = 0; index < RANGE && position < to; index++) {
+            int c = count[index];
+            if (c == 0) {
+                continue;
+            }
+            count[index] = 0;
+            int value = index - Constants.ARRAY_VALUES_ABS_MAX;
+            for (int k = 0; k < c; k++) {
+                array[position++] = value;
+            }
+        }
+    }
+
+    @Override
+    public double estimateCost(int length) {
+        return 2.0 * length + RANGE;
+    }
+}
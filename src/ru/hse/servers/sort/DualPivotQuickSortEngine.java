@@ -0,0 +1,16 @@
+package ru.hse.servers.sort;
+
+import java.util.Arrays;
+
+// Arrays.sort for int[] is the JDK dual-pivot quicksort
+public class DualPivotQuickSortEngine implements SortEngine {
+    @Override
+    public void sort(int[] array, int from, int to) {
+        Arrays.sort(array, from, to);
+    }
+
+    @Override
+    public double estimateCost(int length) {
+        return length * Math.max(1, Math.log(length) / Math.log(2));
+    }
+}
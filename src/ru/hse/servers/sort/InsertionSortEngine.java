@@ -0,0 +1,21 @@
+package ru.hse.servers.sort;
+
+public class InsertionSortEngine implements SortEngine {
+    @Override
+    public void sort(int[] array, int from, int to) {
+        for (int i = from + 1; i < to; i++) {
+            int value = array[i];
+            int j = i - 1;
+            while (j >= from && array[j] > value) {
+                array[j + 1] = array[j];
+                j--;
+            }
+            array[j + 1] = value;
+        }
+    }
+
+    @Override
+    public double estimateCost(int length) {
+        return (double) length * length / 4;
+    }
+}
@@ -0,0 +1,85 @@
+package ru.hse.servers.sort;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+
+public class ParallelSorter {
+    private final SortEngine engine;
+    private final ForkJoinPool pool;
+    private final ThreadLocal<int[]> scratch = ThreadLocal.withInitial(() -> new int[0]);
+
+    public ParallelSorter(SortEngine engine, ForkJoinPool pool) {
+        this.engine = engine;
+        this.pool = pool;
+    }
+
+    public void sort(int[] array, int from, int to, int parts) {
+        if (parts <= 1) {
+            engine.sort(array, from, to);
+            return;
+        }
+        int[] buffer = scratch.get();
+        if (buffer.length < to) {
+            buffer = new int[to];
+            scratch.set(buffer);
+        }
+        try {
+            pool.invoke(new SortTask(array, buffer, from, to, parts));
+        } catch (RejectedExecutionException e) {
+            // the pool is shut down with its server while queued requests may still finish
+            engine.sort(array, from, to);
+        }
+    }
+
+    private class SortTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] array;
+        private final int[] buffer;
+        private final int from;
+        private final int to;
+        private final int parts;
+
+        private SortTask(int[] array, int[] buffer, int from, int to, int parts) {
+            this.array = array;
+            this.buffer = buffer;
+            this.from = from;
+            this.to = to;
+            this.parts = parts;
+        }
+
+        @Override
+        protected void compute() {
+            if (parts <= 1 || to - from < 2) {
+                engine.sort(array, from, to);
+                return;
+            }
+            int leftParts = parts / 2;
+            int mid = from + (int) ((long) (to - from) * leftParts / parts);
+            invokeAll(new SortTask(array, buffer, from, mid, leftParts),
+                    new SortTask(array, buffer, mid, to, parts - leftParts));
+            merge(mid);
+        }
+
+        private void merge(int mid) {
+            if (mid == from || mid == to || array[mid - 1] <= array[mid]) {
+                return;
+            }
+            System.arraycopy(array, from, buffer, from, mid - from);
+            int left = from;
+            int right = mid;
+            int out = from;
+            while (left < mid && right < to) {
+                if (buffer[left] <= array[right]) {
+                    array[out++] = buffer[left++];
+                } else {
+                    array[out++] = array[right++];
+                }
+            }
+            while (left < mid) {
+                array[out++] = buffer[left++];
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package ru.hse.servers.sort;
+
+import java.util.Arrays;
+
+public class RadixSortEngine implements SortEngine {
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX = 1 << RADIX_BITS;
+    private static final int MASK = RADIX - 1;
+
+    private final ThreadLocal<int[]> scratch = ThreadLocal.withInitial(() -> new int[0]);
+    private final ThreadLocal<int[]> counts = ThreadLocal.withInitial(() -> new int[RADIX]);
+
+    @Override
+    public void sort(int[] array, int from, int to) {
+        int length = to - from;
+        if (length < 2) {
+            return;
+        }
+        int[] buffer = scratch.get();
+        if (buffer.length < length) {
+            buffer = new int[length];
+            scratch.set(buffer);
+        }
+        int[] count = counts.get();
+
+        int[] src = array;
+        int srcFrom = from;
+        int[] dst = buffer;
+        int dstFrom = 0;
+        for (int shift = 0; shift < Integer.SIZE; shift += RADIX_BITS) {
+            Arrays.fill(count, 0);
+            for (int i = srcFrom; i < srcFrom + length; i++) {
+                count[digit(src[i], shift)]++;
+            }
+            if (count[digit(src[srcFrom], shift)] == length) {
+                continue;
+            }
+            int sum = 0;
+            for (int d = 0; d < RADIX; d++) {
+                int c = count[d];
+                count[d] = sum;
+                sum += c;
+            }
+            for (int i = srcFrom; i < srcFrom + length; i++) {
+                int value = src[i];
+                dst[dstFrom + count[digit(value, shift)]++] = value;
+            }
+            int[] tmpArray = src;
+            src = dst;
+            dst = tmpArray;
+            int tmpFrom = srcFrom;
+            srcFrom = dstFrom;
+            dstFrom = tmpFrom;
+        }
+        if (src != array) {
+            System.arraycopy(src, srcFrom, array, from, length);
+        }
+    }
+
+    private static int digit(int value, int shift) {
+        // flipping the sign bit makes negative numbers order before positive ones
+        return ((value ^ Integer.MIN_VALUE) >>> shift) & MASK;
+    }
+
+    @Override
+    public double estimateCost(int length) {
+        return (double) (Integer.SIZE / RADIX_BITS) * (2 * length + RADIX);
+    }
+}
@@ -0,0 +1,8 @@
+package ru.hse.servers.sort;
+
+public interface SortEngine {
+    void sort(int[] array, int from, int to);
+
+    // rough number of element operations for an array of the given length
+    double estimateCost(int length);
+}
@@ -0,0 +1,22 @@
+package ru.hse.servers.sort;
+
+import ru.hse.servers.TestConfig;
+
+public class SortEngines {
+    public static SortEngine create(TestConfig.SortType type) {
+        switch (type) {
+            case INSERTION:
+                return new InsertionSortEngine();
+            case QUICK:
+                return new DualPivotQuickSortEngine();
+            case RADIX:
+                return new RadixSortEngine();
+            case COUNTING:
+                return new CountingSortEngine();
+            case ADAPTIVE:
+                return new AdaptiveSortEngine();
+            default:
+                return new BubbleSortEngine();
+        }
+    }
+}
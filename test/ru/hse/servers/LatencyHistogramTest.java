@@ -0,0 +1,119 @@
+package ru.hse.servers;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    @Test
+    public void isEmptyAtFirst() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean(), 0);
+        assertEquals(0, histogram.getPercentile(99));
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void countsSmallValuesExactly() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 16; i++) {
+            histogram.record(i);
+        }
+        assertEquals(16, histogram.getCount());
+        assertEquals(7.5, histogram.getMean(), 1e-9);
+        assertEquals(7, histogram.getPercentile(50));
+        assertEquals(15, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void keepsPercentilesWithinOneSixteenth() {
+        long[] values = { 17, 100, 1_000, 12_345, 1_000_000, 123_456_789, 5_000_000_000L, Long.MAX_VALUE / 3 };
+        for (long value : values) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value);
+            histogram.record(Long.MAX_VALUE / 2);
+            long reported = histogram.getPercentile(50);
+            assertTrue(value + " reported as " + reported, Math.abs(reported - value) <= value / 16);
+        }
+    }
+
+    @Test
+    public void reportsPercentilesOfADistribution() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10_000; i++) {
+            histogram.record(i * 1_000L);
+        }
+        assertEquals(5_000_000, histogram.getPercentile(50), 5_000_000 / 16.0);
+        assertEquals(9_900_000, histogram.getPercentile(99), 9_900_000 / 16.0);
+        assertEquals(10_000_000, histogram.getMax());
+        assertEquals(5_000_500, histogram.getMean(), 1e-6);
+        assertTrue(histogram.getPercentile(100) <= histogram.getMax());
+    }
+
+    @Test
+    public void recordsNegativeDurationsAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void mergesAndResets() {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        first.record(10);
+        second.record(1_000);
+        second.record(3_000);
+        first.add(second);
+
+        assertEquals(3, first.getCount());
+        assertEquals(3_000, first.getMax());
+        assertEquals((10 + 1_000 + 3_000) / 3.0, first.getMean(), 1e-9);
+
+        first.reset();
+        assertEquals(0, first.getCount());
+        assertEquals(0, first.getMax());
+        assertEquals(0, first.getPercentile(50));
+    }
+
+    @Test
+    public void survivesWriteAndRead() throws IOException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value : new long[] { 3, 700, 700, 45_000, 9_000_000_000L }) {
+            histogram.record(value);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        histogram.writeTo(new DataOutputStream(bytes));
+        LatencyHistogram read = LatencyHistogram.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(histogram.getCount(), read.getCount());
+        assertEquals(histogram.getMean(), read.getMean(), 0);
+        assertEquals(histogram.getMax(), read.getMax());
+        for (double percentile : new double[] { 1, 25, 50, 75, 99, 100 }) {
+            assertEquals(histogram.getPercentile(percentile), read.getPercentile(percentile));
+        }
+    }
+
+    @Test
+    public void namesColumnsInMilliseconds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(2_000_000);
+        Map<String, Object> columns = histogram.toColumns("Client");
+        assertEquals(Arrays.asList("ClientMean", "ClientP50", "ClientP90", "ClientP99", "ClientP99.9", "ClientMax"),
+                Arrays.asList(columns.keySet().toArray()));
+        assertEquals(2.0, (Double) columns.get("ClientMax"), 0);
+        assertEquals(2.0, (Double) columns.get("ClientP50"), 2.0 / 16);
+    }
+}
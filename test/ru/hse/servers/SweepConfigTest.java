@@ -0,0 +1,127 @@
+package ru.hse.servers;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.hse.servers.protocol.ProtocolVersion;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SweepConfigTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void expandsListsAndRangesIntoAGrid() throws IOException {
+        List<TestConfig> points = points("architecture=blocking,ASYNC", "length=100..300:100", "clients=1, 4",
+                "pause=10", "queries=5");
+        assertEquals(2 * 3 * 2, points.size());
+
+        List<Integer> lengths = new ArrayList<>();
+        for (TestConfig point : points) {
+            if (point.architectureType == TestConfig.ArchitectureType.BLOCKING && point.numberOfClients == 4) {
+                lengths.add(point.arraysSize);
+            }
+            assertEquals(10, point.pauseBetweenQueries);
+            assertEquals(5, point.numberOfQueriesFromEachClient);
+        }
+        assertEquals(Arrays.asList(100, 200, 300), lengths);
+    }
+
+    @Test
+    public void rangeWithoutStepCountsByOne() throws IOException {
+        List<TestConfig> points = points("architecture=BLOCKING", "length=1..3", "clients=1", "pause=1", "queries=1");
+        assertEquals(3, points.size());
+        assertEquals(3, points.get(2).arraysSize);
+    }
+
+    @Test
+    public void appliesSingleValueSettings() throws IOException {
+        TestConfig point = points("architecture=NON_BLOCKING", "length=10", "clients=2", "pause=5", "queries=3",
+                "protocol=v2", "batchSize=4", "cacheMB=2", "maxInFlight=8", "inlineCostThreshold=500",
+                "traceStages=true", "repetitions=3", "maxRelativeCi=0.05").get(0);
+        assertEquals(ProtocolVersion.V2, point.protocolVersion);
+        assertEquals(4, point.batchSize);
+        assertEquals(2L * 1024 * 1024, point.cacheBytes);
+        assertEquals(8, point.maxInFlight);
+        assertEquals(TestConfig.DispatchMode.HYBRID, point.dispatchMode);
+        assertEquals(500, point.inlineCostThreshold, 0);
+        assertTrue(point.traceStages);
+        assertEquals(3, point.repetitions);
+        assertEquals(0.05, point.maxRelativeCi, 0);
+    }
+
+    @Test
+    public void overridesTheFileWithArguments() throws IOException {
+        File file = folder.newFile("sweep.properties");
+        try (Writer writer = new FileWriter(file)) {
+            writer.write("architecture=ASYNC\nlength=10,20\nclients=1\npause=5\nqueries=2\noutput=grid.csv\n");
+        }
+        SweepConfig sweep = SweepConfig.fromArgs(new String[] { file.getPath(), "length=30", "queries = 7" });
+        List<TestConfig> points = sweep.getPoints();
+        assertEquals(1, points.size());
+        assertEquals(30, points.get(0).arraysSize);
+        assertEquals(7, points.get(0).numberOfQueriesFromEachClient);
+        assertEquals("grid.csv", sweep.getOutputName());
+    }
+
+    @Test
+    public void openLoopNeedsNoPause() throws IOException {
+        TestConfig point = points("architecture=ASYNC", "length=10", "clients=1", "queries=1",
+                "loadMode=poisson", "rate=100").get(0);
+        assertEquals(TestConfig.LoadMode.POISSON, point.loadMode);
+        assertEquals(0, point.pauseBetweenQueries);
+        assertEquals(100, point.targetRate, 0);
+    }
+
+    @Test
+    public void pointSurvivesToArgsAndBack() throws IOException {
+        TestConfig point = points("architecture=VIRTUAL_THREADS", "length=64", "clients=3", "pause=2", "queries=9",
+                "workerThreads=6", "sort=RADIX", "protocol=V2", "batchWindow=4", "clientEngine=VIRTUAL_THREADS",
+                "flushPolicy=IMMEDIATE", "warmup=2").get(0);
+        TestConfig parsed = SweepConfig.fromArgs(SweepConfig.toArgs(point).toArray(new String[0])).getPoints().get(0);
+        assertEquals(SweepConfig.toArgs(point), SweepConfig.toArgs(parsed));
+        assertEquals(TestConfig.ArchitectureType.VIRTUAL_THREADS, parsed.architectureType);
+        assertEquals(6, parsed.workerThreads);
+        assertEquals(TestConfig.SortType.RADIX, parsed.sortType);
+        assertEquals(2, parsed.warmupQueries);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requiresTheLengths() throws IOException {
+        points("architecture=ASYNC", "clients=1", "pause=1", "queries=1");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requiresAPauseForClosedLoop() throws IOException {
+        points("architecture=ASYNC", "length=1", "clients=1", "pause=0", "queries=1");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requiresARateForOpenLoop() throws IOException {
+        points("architecture=ASYNC", "length=1", "clients=1", "queries=1", "loadMode=CONSTANT");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveStep() throws IOException {
+        points("architecture=ASYNC", "length=1..5:0", "clients=1", "pause=1", "queries=1");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMalformedNumbers() throws IOException {
+        points("architecture=ASYNC", "length=ten", "clients=1", "pause=1", "queries=1");
+    }
+
+    private static List<TestConfig> points(String... args) throws IOException {
+        return SweepConfig.fromArgs(args).getPoints();
+    }
+}
@@ -0,0 +1,133 @@
+package ru.hse.servers.architectures;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InFlightLimiterTest {
+    @Test
+    public void neverLimitsWithoutLimits() {
+        InFlightLimiter limiter = new InFlightLimiter(0, 0);
+        AtomicInteger connection = new AtomicInteger();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(limiter.tryAcquire(connection));
+        }
+        assertEquals(1000, limiter.getInFlight());
+        assertEquals(1000, limiter.getMaxInFlight());
+        for (int i = 0; i < 1000; i++) {
+            limiter.release(connection);
+        }
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(0, connection.get());
+    }
+
+    @Test
+    public void limitsEachConnection() {
+        InFlightLimiter limiter = new InFlightLimiter(2, 0);
+        AtomicInteger first = new AtomicInteger();
+        AtomicInteger second = new AtomicInteger();
+        assertTrue(limiter.tryAcquire(first));
+        assertTrue(limiter.tryAcquire(first));
+        assertFalse(limiter.tryAcquire(first));
+        assertTrue(limiter.tryAcquire(second));
+        limiter.release(first);
+        assertTrue(limiter.tryAcquire(first));
+    }
+
+    @Test
+    public void limitsTheServer() {
+        InFlightLimiter limiter = new InFlightLimiter(0, 2);
+        AtomicInteger first = new AtomicInteger();
+        AtomicInteger second = new AtomicInteger();
+        assertTrue(limiter.tryAcquire(first));
+        assertTrue(limiter.tryAcquire(second));
+        assertFalse(limiter.tryAcquire(second));
+        assertEquals(1, second.get());
+        limiter.release(first);
+        assertTrue(limiter.tryAcquire(second));
+        assertEquals(2, limiter.getMaxInFlight());
+    }
+
+    @Test
+    public void resumesParkedConnectionOnRelease() {
+        InFlightLimiter limiter = new InFlightLimiter(0, 1);
+        AtomicInteger first = new AtomicInteger();
+        AtomicInteger second = new AtomicInteger();
+        AtomicInteger resumed = new AtomicInteger();
+        assertTrue(limiter.tryAcquire(first));
+        assertFalse(limiter.tryAcquire(second));
+        limiter.park(second, resumed::incrementAndGet);
+        assertEquals(0, resumed.get());
+
+        limiter.release(first);
+        assertEquals(1, resumed.get());
+        assertTrue(limiter.tryAcquire(second));
+        limiter.release(second);
+        assertEquals(1, resumed.get());
+    }
+
+    @Test
+    public void resumesRightAwayWhenAReleaseCameBeforeThePark() {
+        InFlightLimiter limiter = new InFlightLimiter(1, 0);
+        AtomicInteger connection = new AtomicInteger();
+        AtomicInteger resumed = new AtomicInteger();
+        assertTrue(limiter.tryAcquire(connection));
+        assertFalse(limiter.tryAcquire(connection));
+        limiter.release(connection);
+        limiter.park(connection, resumed::incrementAndGet);
+        assertEquals(1, resumed.get());
+    }
+
+    @Test
+    public void connectionParkedAgainWaitsForTheNextRelease() {
+        InFlightLimiter limiter = new InFlightLimiter(0, 1);
+        AtomicInteger holder = new AtomicInteger();
+        AtomicInteger parked = new AtomicInteger();
+        AtomicInteger resumed = new AtomicInteger();
+        assertTrue(limiter.tryAcquire(holder));
+        limiter.park(parked, new Runnable() {
+            @Override
+            public void run() {
+                resumed.incrementAndGet();
+                if (resumed.get() == 1) {
+                    assertTrue(limiter.tryAcquire(holder));
+                    limiter.park(parked, this);
+                }
+            }
+        });
+
+        limiter.release(holder);
+        assertEquals(1, resumed.get());
+        limiter.release(holder);
+        assertEquals(2, resumed.get());
+    }
+
+    @Test
+    public void blockedReaderContinuesAfterRelease() throws InterruptedException {
+        InFlightLimiter limiter = new InFlightLimiter(1, 0);
+        AtomicInteger connection = new AtomicInteger();
+        assertTrue(limiter.tryAcquire(connection));
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread reader = new Thread(() -> {
+            try {
+                limiter.acquire(connection);
+                acquired.countDown();
+            } catch (InterruptedException ignore) {
+            }
+        });
+        reader.start();
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+
+        limiter.release(connection);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        reader.join();
+        assertEquals(1, limiter.getThrottles());
+        assertTrue(limiter.getThrottledMillis() > 0);
+    }
+}
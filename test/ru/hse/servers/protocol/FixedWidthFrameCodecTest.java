@@ -0,0 +1,179 @@
+package ru.hse.servers.protocol;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FixedWidthFrameCodecTest {
+    private final FixedWidthFrameCodec codec = new FixedWidthFrameCodec();
+
+    @Test
+    public void roundTripsFromBuffer() throws IOException {
+        ArrayMessage decoded = codec.decode(body(new ArrayMessage(3, 7, new int[] { 5, -1, 0, Integer.MAX_VALUE }, 4)), null);
+        assertEquals(3, decoded.clientId);
+        assertEquals(7, decoded.taskId);
+        assertEquals(4, decoded.length);
+        assertArrayEquals(new int[] { 5, -1, 0, Integer.MAX_VALUE }, decoded.array);
+        assertNull(decoded.next);
+    }
+
+    @Test
+    public void roundTripsFromStream() throws IOException {
+        ByteBuffer body = body(new ArrayMessage(1, 2, new int[] { 9, 8, 7 }, 3));
+        ArrayMessage decoded = codec.decode(stream(body), body.remaining(), null);
+        assertEquals(2, decoded.taskId);
+        assertArrayEquals(new int[] { 9, 8, 7 }, decoded.array);
+    }
+
+    @Test
+    public void encodesOnlyTheUsedPrefix() throws IOException {
+        ArrayMessage decoded = codec.decode(body(new ArrayMessage(0, 0, new int[] { 4, 5, 6, 7 }, 2)), null);
+        assertEquals(2, decoded.length);
+        assertArrayEquals(new int[] { 4, 5 }, decoded.array);
+    }
+
+    @Test
+    public void reusesLargeEnoughArray() throws IOException {
+        int[] reuse = new int[8];
+        ArrayMessage decoded = codec.decode(body(new ArrayMessage(0, 0, new int[] { 1, 2 }, 2)), reuse);
+        assertSame(reuse, decoded.array);
+        assertEquals(2, decoded.length);
+
+        ArrayMessage tooSmall = codec.decode(body(new ArrayMessage(0, 0, new int[] { 1, 2, 3 }, 3)), new int[2]);
+        assertArrayEquals(new int[] { 1, 2, 3 }, tooSmall.array);
+    }
+
+    @Test
+    public void keepsTheOrderOfTheBuffer() throws IOException {
+        ByteBuffer body = body(new ArrayMessage(0, 0, new int[] { 1 }, 1));
+        codec.decode(body, null);
+        assertEquals(ByteOrder.BIG_ENDIAN, body.order());
+        assertEquals(0, body.remaining());
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void rejectsShortHeader() throws IOException {
+        codec.decode(ByteBuffer.allocate(FixedWidthFrameCodec.HEADER_SIZE - 1), null);
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void rejectsUnknownKind() throws IOException {
+        codec.decode(header(7, 0, 0, 0), null);
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void rejectsCountThatDoesNotMatchTheBody() throws IOException {
+        codec.decode(header(FixedWidthFrameCodec.KIND_SINGLE, 0, 0, 5), null);
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void rejectsNegativeCount() throws IOException {
+        codec.decode(header(FixedWidthFrameCodec.KIND_SINGLE, 0, 0, -1), null);
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void rejectsCountThatDoesNotMatchTheStream() throws IOException {
+        ByteBuffer body = header(FixedWidthFrameCodec.KIND_SINGLE, 0, 0, 5);
+        codec.decode(stream(body), body.remaining(), null);
+    }
+
+    @Test
+    public void roundTripsBatchFromBufferAndStream() throws IOException {
+        ByteBuffer body = body(batch());
+        assertEquals(FixedWidthFrameCodec.HEADER_SIZE + 3 * FixedWidthFrameCodec.ENTRY_HEADER_SIZE + 4 * 5, body.remaining());
+        assertBatch(codec.decode(stream(body), body.remaining(), null));
+        assertBatch(codec.decode(body, null));
+    }
+
+    @Test
+    public void reusesArrayForTheFirstEntryOnly() throws IOException {
+        int[] reuse = new int[8];
+        ArrayMessage decoded = codec.decode(body(batch()), reuse);
+        assertSame(reuse, decoded.array);
+        assertNotSame(reuse, decoded.next.array);
+        assertNotSame(reuse, decoded.next.next.array);
+    }
+
+    @Test
+    public void onlyTheFixedWidthCodecBatches() {
+        assertTrue(ProtocolVersion.V2.codec.supportsBatches());
+        assertFalse(ProtocolVersion.V1.codec.supportsBatches());
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void rejectsBatchWithoutEntries() throws IOException {
+        codec.decode(header(FixedWidthFrameCodec.KIND_BATCH, 0, 0, 0), null);
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void rejectsBatchWithWrongTotal() throws IOException {
+        ByteBuffer body = body(batch());
+        body.order(ByteOrder.LITTLE_ENDIAN).putInt(12, 4).order(ByteOrder.BIG_ENDIAN);
+        codec.decode(body, null);
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void rejectsBatchEntryLongerThanTheFrame() throws IOException {
+        // the first entry claims all five elements, so the last one runs past the end of the frame
+        ByteBuffer body = body(batch());
+        body.order(ByteOrder.LITTLE_ENDIAN).putInt(FixedWidthFrameCodec.HEADER_SIZE + 4, 5).order(ByteOrder.BIG_ENDIAN);
+        codec.decode(body, null);
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void rejectsStreamedBatchEntryLongerThanTheFrame() throws IOException {
+        ByteBuffer body = body(batch());
+        body.order(ByteOrder.LITTLE_ENDIAN).putInt(FixedWidthFrameCodec.HEADER_SIZE + 4, 5).order(ByteOrder.BIG_ENDIAN);
+        codec.decode(stream(body), body.remaining(), null);
+    }
+
+    private static ArrayMessage batch() {
+        ArrayMessage first = new ArrayMessage(6, 10, new int[] { 3, 1 }, 2);
+        first.next = new ArrayMessage(6, 11, new int[0], 0);
+        first.next.next = new ArrayMessage(6, 12, new int[] { 9, 8, 7 }, 3);
+        return first;
+    }
+
+    private static void assertBatch(ArrayMessage decoded) {
+        assertEquals(3, decoded.taskCount());
+        assertEquals(5, decoded.totalLength());
+        int taskId = 10;
+        for (ArrayMessage entry = decoded; entry != null; entry = entry.next) {
+            assertEquals(6, entry.clientId);
+            assertEquals(taskId++, entry.taskId);
+        }
+        assertArrayEquals(new int[] { 3, 1 }, decoded.array);
+        assertEquals(0, decoded.next.length);
+        assertArrayEquals(new int[] { 9, 8, 7 }, decoded.next.next.array);
+    }
+
+    static ByteBuffer body(ArrayMessage message) throws IOException {
+        ByteBuffer frame = ProtocolVersion.V2.codec.encodeFrame(message);
+        assertEquals(frame.remaining() - 4, frame.getInt());
+        return frame.slice();
+    }
+
+    static ByteBuffer header(int kind, int clientId, int third, int count) {
+        return ByteBuffer.allocate(FixedWidthFrameCodec.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(kind).putInt(clientId).putInt(third).putInt(count)
+                .flip().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    static CodedInputStream stream(ByteBuffer body) {
+        byte[] bytes = new byte[body.remaining()];
+        body.duplicate().get(bytes);
+        return CodedInputStream.newInstance(bytes);
+    }
+}
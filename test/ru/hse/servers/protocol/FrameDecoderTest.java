@@ -0,0 +1,152 @@
+package ru.hse.servers.protocol;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.junit.After;
+import org.junit.Test;
+import ru.hse.servers.BufferPool;
+import ru.hse.servers.Constants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class FrameDecoderTest {
+    private final BufferPool pool = new BufferPool(10, 20, 1024 * 1024);
+    private final FrameDecoder decoder = new FrameDecoder(pool);
+
+    @After
+    public void release() {
+        decoder.release();
+        assertEquals(0, pool.getOutstanding());
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void rejectsUnknownVersion() throws IOException {
+        feed(ByteBuffer.allocate(8).putInt(-7).putInt(1).flip());
+        decoder.nextFrame();
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void rejectsNegativeNumberOfTasks() throws IOException {
+        feed(ByteBuffer.allocate(8).putInt(-ProtocolVersion.V2.number).putInt(-1).flip());
+        decoder.nextFrame();
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void rejectsNegativeFrameSize() throws IOException {
+        feed(ProtocolVersion.V2.makeHandshake(1));
+        feed(ByteBuffer.allocate(4).putInt(-5).flip());
+        decoder.nextFrame();
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void rejectsOversizedFrame() throws IOException {
+        feed(ProtocolVersion.V2.makeHandshake(1));
+        feed(ByteBuffer.allocate(4).putInt(Constants.MAX_FRAME_SIZE + 1).flip());
+        decoder.nextFrame();
+    }
+
+    @Test
+    public void waitsForTheWholeHandshake() throws IOException {
+        feed(ByteBuffer.allocate(4).putInt(-ProtocolVersion.V2.number).flip());
+        assertNull(decoder.nextFrame());
+        feed(ByteBuffer.allocate(4).putInt(3).flip());
+        assertNull(decoder.nextFrame());
+        assertEquals(3, decoder.getNumberOfTasks());
+        assertEquals(ProtocolVersion.V2.codec, decoder.getCodec());
+    }
+
+    @Test
+    public void decodesFramesOfBothVersions() throws IOException {
+        for (ProtocolVersion version : ProtocolVersion.values()) {
+            FrameDecoder versionDecoder = new FrameDecoder(pool);
+            try {
+                versionDecoder.getReadTarget().put(version.makeHandshake(1));
+                versionDecoder.getReadTarget().put(version.codec.encodeFrame(new ArrayMessage(4, 0, new int[] { 3, 1, 2 }, 3)));
+                ByteBuffer body = versionDecoder.nextFrame();
+                assertNotNull(body);
+                assertEquals(version.codec, versionDecoder.getCodec());
+                ArrayMessage message = versionDecoder.getCodec().decode(body, null);
+                assertEquals(4, message.clientId);
+                assertArrayEquals(new int[] { 3, 1, 2 }, Arrays.copyOf(message.array, message.length));
+            } finally {
+                versionDecoder.release();
+            }
+        }
+    }
+
+    @Test
+    public void decodesFramesFedOneByteAtATime() throws IOException {
+        int[][] arrays = { { 1, 2, 3 }, {}, { -4, 5 } };
+        ByteBuffer stream = ByteBuffer.allocate(1024);
+        stream.put(ProtocolVersion.V2.makeHandshake(arrays.length));
+        for (int i = 0; i < arrays.length; i++) {
+            stream.put(ProtocolVersion.V2.codec.encodeFrame(new ArrayMessage(0, i, arrays[i], arrays[i].length)));
+        }
+        stream.flip();
+
+        List<ArrayMessage> decoded = new ArrayList<>();
+        while (stream.hasRemaining()) {
+            decoder.getReadTarget().put(stream.get());
+            collect(decoded);
+        }
+        assertEquals(arrays.length, decoded.size());
+        for (int i = 0; i < arrays.length; i++) {
+            assertEquals(i, decoded.get(i).taskId);
+            assertArrayEquals(arrays[i], decoded.get(i).array);
+        }
+    }
+
+    @Test
+    public void decodesSeveralFramesFromOneRead() throws IOException {
+        feed(ProtocolVersion.V2.makeHandshake(3));
+        for (int i = 0; i < 3; i++) {
+            feed(ProtocolVersion.V2.codec.encodeFrame(new ArrayMessage(0, i, new int[] { i }, 1)));
+        }
+        List<ArrayMessage> decoded = new ArrayList<>();
+        collect(decoded);
+        assertEquals(3, decoded.size());
+        assertEquals(2, decoded.get(2).array[0]);
+    }
+
+    @Test
+    public void decodesFrameLargerThanTheReadBuffer() throws IOException {
+        int[] array = new int[100_000];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = array.length - i;
+        }
+        ByteBuffer frame = ProtocolVersion.V2.codec.encodeFrame(new ArrayMessage(0, 0, array, array.length));
+        feed(ProtocolVersion.V2.makeHandshake(1));
+
+        List<ArrayMessage> decoded = new ArrayList<>();
+        while (frame.hasRemaining()) {
+            ByteBuffer target = decoder.getReadTarget();
+            ByteBuffer chunk = frame.duplicate();
+            chunk.limit(chunk.position() + Math.min(Math.min(target.remaining(), 1460), frame.remaining()));
+            frame.position(chunk.limit());
+            target.put(chunk);
+            collect(decoded);
+        }
+        assertEquals(1, decoded.size());
+        assertArrayEquals(array, decoded.get(0).array);
+    }
+
+    // a body is only valid until the next call, so it is decoded right away
+    private void collect(List<ArrayMessage> decoded) throws IOException {
+        ByteBuffer body;
+        while ((body = decoder.nextFrame()) != null) {
+            decoded.add(decoder.getCodec().decode(body, null));
+        }
+    }
+
+    private void feed(ByteBuffer bytes) {
+        decoder.getReadTarget().put(bytes);
+    }
+}
@@ -0,0 +1,89 @@
+package ru.hse.servers.protocol;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.junit.Test;
+import ru.hse.servers.Constants;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FrameReaderTest {
+    @Test
+    public void readsHandshakeAndFramesOfBothVersions() throws IOException {
+        for (ProtocolVersion version : ProtocolVersion.values()) {
+            FrameReader reader = reader(version.makeHandshake(2),
+                    version.codec.encodeFrame(new ArrayMessage(5, 0, new int[] { 3, 2, 1 }, 3)),
+                    version.codec.encodeFrame(new ArrayMessage(5, 1, new int[] { -7 }, 1)));
+            assertEquals(version, reader.readHandshake());
+            assertEquals(2, reader.getNumberOfTasks());
+
+            ArrayMessage first = reader.readMessage(version.codec, null);
+            assertEquals(0, first.taskId);
+            assertArrayEquals(new int[] { 3, 2, 1 }, Arrays.copyOf(first.array, first.length));
+            ArrayMessage second = reader.readMessage(version.codec, null);
+            assertEquals(1, second.taskId);
+            assertEquals(-7, second.array[0]);
+        }
+    }
+
+    @Test
+    public void readsFramesLargerThanItsBuffer() throws IOException {
+        int[] array = new int[10_000];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = i * 31;
+        }
+        ByteBuffer frame = ProtocolVersion.V2.codec.encodeFrame(new ArrayMessage(0, 0, array, array.length));
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(bytes(frame)), 64);
+        ArrayMessage message = reader.readMessage(ProtocolVersion.V2.codec, null);
+        assertEquals(frame.limit(), reader.getFrameSize());
+        assertArrayEquals(array, message.array);
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void rejectsUnknownVersion() throws IOException {
+        reader(ByteBuffer.allocate(8).putInt(-7).putInt(1).flip()).readHandshake();
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void rejectsNegativeNumberOfTasks() throws IOException {
+        reader(ByteBuffer.allocate(8).putInt(-ProtocolVersion.V2.number).putInt(-1).flip()).readHandshake();
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void rejectsOversizedFrame() throws IOException {
+        reader(ByteBuffer.allocate(4).putInt(Constants.MAX_FRAME_SIZE + 1).flip()).readMessage(ProtocolVersion.V2.codec, null);
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void rejectsTruncatedFrame() throws IOException {
+        ByteBuffer frame = ProtocolVersion.V2.codec.encodeFrame(new ArrayMessage(0, 0, new int[] { 1, 2, 3 }, 3));
+        frame.limit(frame.limit() - 2);
+        reader(frame).readMessage(ProtocolVersion.V2.codec, null);
+    }
+
+    @Test(expected = EOFException.class)
+    public void failsAtTheEndOfTheStream() throws IOException {
+        reader().readHandshake();
+    }
+
+    private static FrameReader reader(ByteBuffer... parts) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (ByteBuffer part : parts) {
+            stream.writeBytes(bytes(part));
+        }
+        return new FrameReader(new ByteArrayInputStream(stream.toByteArray()));
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,90 @@
+package ru.hse.servers.sort;
+
+import org.junit.After;
+import org.junit.Test;
+import ru.hse.servers.TestConfig;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class ParallelSorterTest {
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+    private final ParallelSorter sorter = new ParallelSorter(SortEngines.create(TestConfig.SortType.QUICK), pool);
+    private final Random random = new Random(42);
+
+    @After
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void sortsLikeArraysSort() {
+        for (int length : new int[] { 0, 1, 2, 3, 17, 1000, 100_000 }) {
+            for (int parts : new int[] { 1, 2, 3, 4, 7, 16 }) {
+                int[] array = randomArray(length, 1_000_000);
+                int[] expected = array.clone();
+                Arrays.sort(expected);
+                sorter.sort(array, 0, length, parts);
+                assertArrayEquals(length + " elements in " + parts + " parts", expected, array);
+            }
+        }
+    }
+
+    @Test
+    public void sortsManyDuplicates() {
+        int[] array = randomArray(50_000, 3);
+        int[] expected = array.clone();
+        Arrays.sort(expected);
+        sorter.sort(array, 0, array.length, 8);
+        assertArrayEquals(expected, array);
+    }
+
+    @Test
+    public void sortsOnlyTheGivenRange() {
+        int[] array = randomArray(10_000, 1000);
+        int[] expected = array.clone();
+        Arrays.sort(expected, 100, 9_000);
+        sorter.sort(array, 100, 9_000, 4);
+        assertArrayEquals(expected, array);
+    }
+
+    @Test
+    public void sortsAlreadySortedAndReversedInput() {
+        int[] sorted = new int[20_000];
+        int[] reversed = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = i;
+            reversed[i] = sorted.length - i;
+        }
+        int[] expected = reversed.clone();
+        Arrays.sort(expected);
+        sorter.sort(sorted, 0, sorted.length, 4);
+        sorter.sort(reversed, 0, reversed.length, 4);
+        assertArrayEquals(expected, reversed);
+        for (int i = 0; i < sorted.length; i++) {
+            expected[i] = i;
+        }
+        assertArrayEquals(expected, sorted);
+    }
+
+    @Test
+    public void sortsOnTheCallerAfterThePoolIsShutDown() {
+        pool.shutdownNow();
+        int[] array = randomArray(5_000, 100);
+        int[] expected = array.clone();
+        Arrays.sort(expected);
+        sorter.sort(array, 0, array.length, 4);
+        assertArrayEquals(expected, array);
+    }
+
+    private int[] randomArray(int length, int bound) {
+        int[] array = new int[length];
+        for (int i = 0; i < length; i++) {
+            array[i] = random.nextInt(2 * bound) - bound;
+        }
+        return array;
+    }
+}
@@ -0,0 +1,132 @@
+package ru.hse.servers.sort;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ResultCacheTest {
+    private final AtomicInteger sorts = new AtomicInteger();
+    private final ResultCache.SortAction countingSort = (array, length) -> {
+        sorts.incrementAndGet();
+        Arrays.sort(array, 0, length);
+    };
+
+    @Test
+    public void servesAnyPermutationOfACachedInput() {
+        ResultCache cache = new ResultCache(1 << 20);
+        int[] first = { 3, 1, 2 };
+        cache.sort(first, first.length, countingSort);
+        int[] permuted = { 2, 3, 1 };
+        cache.sort(permuted, permuted.length, countingSort);
+
+        assertArrayEquals(new int[] { 1, 2, 3 }, permuted);
+        assertEquals(1, sorts.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(12, cache.getBytesSaved());
+    }
+
+    @Test
+    public void tellsApartInputsWithTheSameValuesInOtherCounts() {
+        ResultCache cache = new ResultCache(1 << 20);
+        int[] first = { 1, 1, 2 };
+        cache.sort(first, first.length, countingSort);
+        int[] second = { 1, 2, 2 };
+        cache.sort(second, second.length, countingSort);
+
+        assertArrayEquals(new int[] { 1, 2, 2 }, second);
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void sortsOnlyTheUsedPrefix() {
+        ResultCache cache = new ResultCache(1 << 20);
+        int[] first = { 2, 1, 9 };
+        cache.sort(first, 2, countingSort);
+        int[] second = { 1, 2, -5 };
+        cache.sort(second, 2, countingSort);
+
+        assertArrayEquals(new int[] { 1, 2, -5 }, second);
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedEntry() {
+        // room for two entries of four elements
+        ResultCache cache = new ResultCache(2 * (64 + 16));
+        int[] a = { 4, 3, 2, 1 };
+        int[] b = { 8, 7, 6, 5 };
+        int[] c = { 12, 11, 10, 9 };
+        cache.sort(a.clone(), 4, countingSort);
+        cache.sort(b.clone(), 4, countingSort);
+        cache.sort(a.clone(), 4, countingSort);
+        cache.sort(c.clone(), 4, countingSort);
+
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2 * (64 + 16), cache.getUsedBytes());
+        cache.sort(a.clone(), 4, countingSort);
+        assertEquals(2, cache.getHits());
+        cache.sort(b.clone(), 4, countingSort);
+        assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    public void skipsResultsLargerThanTheBudget() {
+        ResultCache cache = new ResultCache(64);
+        int[] array = { 2, 1 };
+        cache.sort(array, 2, countingSort);
+        cache.sort(new int[] { 1, 2 }, 2, countingSort);
+
+        assertEquals(0, cache.getUsedBytes());
+        assertEquals(2, sorts.get());
+    }
+
+    @Test
+    public void sortsConcurrentIdenticalMissesOnce() throws Exception {
+        ResultCache cache = new ResultCache(1 << 20);
+        CountDownLatch sorting = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ResultCache.SortAction blockingSort = (array, length) -> {
+            sorts.incrementAndGet();
+            sorting.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            Arrays.sort(array, 0, length);
+        };
+
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            int[] first = { 5, 4, 3 };
+            int[] second = { 3, 5, 4 };
+            Future<?> leader = threads.submit(() -> cache.sort(first, first.length, blockingSort));
+            assertTrue(sorting.await(5, TimeUnit.SECONDS));
+            Future<?> follower = threads.submit(() -> cache.sort(second, second.length, blockingSort));
+            // the follower joins the flight of the leader, which is still sorting
+            Thread.sleep(100);
+            release.countDown();
+            leader.get(5, TimeUnit.SECONDS);
+            follower.get(5, TimeUnit.SECONDS);
+
+            assertArrayEquals(new int[] { 3, 4, 5 }, first);
+            assertArrayEquals(new int[] { 3, 4, 5 }, second);
+            assertEquals(1, sorts.get());
+            assertEquals(1, cache.getMisses());
+            assertEquals(1, cache.getHits() + cache.getSharedFlights());
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+}